@@ -0,0 +1,44 @@
+package ir;
+
+/**
+ *  Okapi BM25:
+ *  w * idf * tf * (k1+1) / (tf + k1 * (1 - b + b * length/avgLength)),
+ *  with idf = log(1 + (N - df + 0.5) / (df + 0.5)).
+ */
+public class BM25Scorer implements Scorer {
+
+    /** Term frequency saturation. */
+    double k1;
+
+    /** Strength of the length normalization (0 = none, 1 = full). */
+    double b;
+
+    public BM25Scorer( double k1, double b ) {
+    	this.k1 = k1;
+    	this.b = b;
+    }
+
+    public BM25Scorer() {
+    	this(1.2, 0.75);
+    }
+
+    public TermScorer forTerm( final ScoringStatistics stats, final double weight, int df, final int termID ) {
+    	final double idf = Math.log(1 + (stats.size() - df + 0.5) / (df + 0.5));
+    	final double avgLength = stats.avgLength() > 0 ? stats.avgLength() : 1;
+    	return new TermScorer() {
+    		public double score( int tf, int doc ) {
+    			return weight * idf * bm25(tf, stats.docLength(doc), avgLength);
+    		}
+    		public double upperBound() {
+    			// increasing in tf and decreasing in length
+    			if(termID < 0)
+    				return weight * idf * (k1 + 1);
+    			return weight * idf * bm25(stats.maxTf(termID), stats.minLength(termID), avgLength);
+    		}
+    	};
+    }
+
+    private double bm25( int tf, int length, double avgLength ) {
+    	return tf * (k1 + 1) / (tf + k1 * (1 - b + b * length / avgLength));
+    }
+}
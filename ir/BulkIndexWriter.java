@@ -0,0 +1,186 @@
+package ir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ *  Commits the dictionary, data and terms files of a PersistentHashedIndex,
+ *  each one in a single sequential pass.
+ *
+ *  Postings and terms are appended through large buffers. The open-addressing
+ *  table is built in memory and only written out, slot after slot, once all
+ *  terms are added: committing never seeks in, nor reads back, the files it writes.
+ *
+ *  When the index uses a sorted dictionary, the terms must be added in
+ *  increasing order, and a SortedDictionary is written instead of the hash
+ *  table and the terms file.
+ */
+public class BulkIndexWriter {
+
+    /** Size of the write buffers. */
+    static final int BUFFER_SIZE = 1 << 20;
+
+    /** The index whose files are written (for the hash function and the slot size). */
+    PersistentHashedIndex index;
+
+    FileChannel dictionary, data, terms;
+    ByteBuffer dataBuffer, termsBuffer;
+
+    /** First free position in the data and terms files. */
+    long free, freeTerm;
+
+    /** Encodes the terms (and the postings added as lists). */
+    PostingsCodec codec = new PostingsCodec();
+
+    /** The hash table: the number of the term in each slot, -1 for empty slots. */
+    int[] table;
+
+    /** Number of terms added, and the content of their dictionary entries. */
+    int n = 0;
+    int[] fingerprints = new int[1024];
+    int[] termPtrs = new int[1024];
+    long[] dataPtrs = new long[1024];
+    int[] lens = new int[1024];
+
+    /** Number of occupied slots probed before finding free ones. */
+    int collisions = 0;
+
+    /** Writes the sorted dictionary, or null for a hash table. */
+    SortedDictionary.Writer sorted = null;
+
+
+    /**
+     *  Starts writing postings at <code>free</code> in the data file,
+     *  and terms at <code>freeTerm</code> in the terms file.
+     */
+    public BulkIndexWriter( PersistentHashedIndex index, RandomAccessFile dictionaryFile, RandomAccessFile dataFile, RandomAccessFile termsFile, long free, long freeTerm ) throws IOException {
+    	this.index = index;
+    	this.dictionary = dictionaryFile.getChannel();
+    	this.data = dataFile.getChannel();
+    	this.terms = termsFile.getChannel();
+    	this.free = free;
+    	this.freeTerm = freeTerm;
+    	data.position(free);
+    	terms.position(freeTerm);
+    	dataBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    	if(index.useSortedDictionary) {
+    		sorted = new SortedDictionary.Writer(PersistentHashedIndex.INDEXDIR + "/" + PersistentHashedIndex.SORTED_DICTIONARY_FNAME);
+    		return;
+    	}
+    	termsBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    	table = new int[(int) PersistentHashedIndex.TABLESIZE];
+    	Arrays.fill(table, -1);
+    }
+
+
+    /**
+     *  Adds a term and its postings list.
+     */
+    public void add( String token, PostingsList list ) throws IOException {
+    	int len = codec.encode(token, list);
+    	add(token, codec.bytes, len);
+    }
+
+
+    /**
+     *  Adds a term and its postings record, already encoded in bytes[0] ... bytes[len-1].
+     */
+    public void add( String token, byte[] bytes, int len ) throws IOException {
+    	if(sorted != null) {
+    		sorted.add(token, free, len);
+    		write(data, dataBuffer, bytes, len);
+    		free += len;
+    		return;
+    	}
+    	if(n == lens.length) {
+    		fingerprints = Arrays.copyOf(fingerprints, 2*n);
+    		termPtrs = Arrays.copyOf(termPtrs, 2*n);
+    		dataPtrs = Arrays.copyOf(dataPtrs, 2*n);
+    		lens = Arrays.copyOf(lens, 2*n);
+    	}
+    	// the record is copied out before the codec is reused for the term
+    	dataPtrs[n] = free;
+    	lens[n] = len;
+    	write(data, dataBuffer, bytes, len);
+    	free += len;
+
+    	int termLen = codec.encodeToken(token);
+    	if(freeTerm > Integer.MAX_VALUE)
+    		throw new IOException("The terms file is larger than 2GB");
+    	termPtrs[n] = (int) freeTerm;
+    	write(terms, termsBuffer, codec.bytes, termLen);
+    	freeTerm += termLen;
+
+    	fingerprints[n] = PersistentHashedIndex.fingerprint(token);
+    	int slot = (int) (index.h(token, 0) / index.entryLen);
+    	while(table[slot] != -1) {
+    		slot = (slot + 1) % table.length;
+    		collisions++;
+    	}
+    	table[slot] = n++;
+    }
+
+
+    /**
+     *  Flushes the data and terms files and writes the whole dictionary.
+     */
+    public void finish() throws IOException {
+    	flush(data, dataBuffer);
+    	if(sorted != null) {
+    		sorted.finish();
+    		// the hash table is not needed any more
+    		dictionary.truncate(0);
+    		index.sortedDictionary = SortedDictionary.open(PersistentHashedIndex.INDEXDIR + "/" + PersistentHashedIndex.SORTED_DICTIONARY_FNAME);
+    		return;
+    	}
+    	flush(terms, termsBuffer);
+
+    	// Same layout as PersistentHashedIndex.Entry
+    	int entryLen = index.entryLen;
+    	byte[] empty = new byte[entryLen];
+    	ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE - BUFFER_SIZE % entryLen);
+    	dictionary.position(0);
+    	for(int slot = 0; slot < table.length; slot++) {
+    		if(!buffer.hasRemaining())
+    			flush(dictionary, buffer);
+    		int t = table[slot];
+    		if(t == -1) {
+    			buffer.put(empty);
+    		} else {
+    			buffer.put((byte) 75);
+    			buffer.putInt(fingerprints[t]);
+    			buffer.putInt(termPtrs[t]);
+    			buffer.putLong(dataPtrs[t]);
+    			buffer.putInt(lens[t]);
+    		}
+    	}
+    	flush(dictionary, buffer);
+
+    	// a sorted dictionary left by a previous commit would be outdated
+    	new File(PersistentHashedIndex.INDEXDIR + "/" + PersistentHashedIndex.SORTED_DICTIONARY_FNAME).delete();
+    	index.sortedDictionary = null;
+    }
+
+
+    private void write( FileChannel channel, ByteBuffer buffer, byte[] bytes, int len ) throws IOException {
+    	int off = 0;
+    	while(off < len) {
+    		int k = Math.min(len - off, buffer.remaining());
+    		buffer.put(bytes, off, k);
+    		off += k;
+    		if(!buffer.hasRemaining())
+    			flush(channel, buffer);
+    	}
+    }
+
+    private static void flush( FileChannel channel, ByteBuffer buffer ) throws IOException {
+    	buffer.flip();
+    	while(buffer.hasRemaining())
+    		channel.write(buffer);
+    	buffer.clear();
+    }
+}
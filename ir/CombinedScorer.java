@@ -0,0 +1,32 @@
+package ir;
+
+/**
+ *  A weighted sum of two scorers, alpha * first + beta * second.
+ */
+public class CombinedScorer implements Scorer {
+
+    Scorer first;
+    double alpha;
+    Scorer second;
+    double beta;
+
+    public CombinedScorer( Scorer first, double alpha, Scorer second, double beta ) {
+    	this.first = first;
+    	this.alpha = alpha;
+    	this.second = second;
+    	this.beta = beta;
+    }
+
+    public TermScorer forTerm( ScoringStatistics stats, double weight, int df, int termID ) {
+    	final TermScorer s1 = first.forTerm(stats, weight, df, termID);
+    	final TermScorer s2 = second.forTerm(stats, weight, df, termID);
+    	return new TermScorer() {
+    		public double score( int tf, int doc ) {
+    			return alpha * s1.score(tf, doc) + beta * s2.score(tf, doc);
+    		}
+    		public double upperBound() {
+    			return alpha * s1.upperBound() + beta * s2.upperBound();
+    		}
+    	};
+    }
+}
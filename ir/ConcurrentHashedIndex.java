@@ -0,0 +1,302 @@
+package ir;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ *   An in-memory inverted index that can be searched while documents are
+ *   being inserted, without locking out the searches.
+ *
+ *   The dictionary is a ConcurrentHashMap. The postings lists are appended to
+ *   by the indexing thread only, and documents are inserted in increasing
+ *   docID order. When the indexer moves on to the next document, the previous
+ *   one is complete: each list it touched publishes a read-only view of itself
+ *   through a volatile field, then the watermark (the first docID not yet
+ *   complete) is raised. A search works on a snapshot, which cuts every view
+ *   at the watermark of the moment it was taken, so it sees a consistent
+ *   point-in-time collection however many documents are added meanwhile.
+ *
+ *   The number and lengths of the complete documents are published with the
+ *   watermark, so the statistics of a snapshot cost nothing to set up; those
+ *   of a term are computed from its postings in the snapshot when a query
+ *   asks for them.
+ */
+public class ConcurrentHashedIndex implements Index {
+
+    /**
+     *  The documents visible to searches: those before the watermark, their
+     *  number and total length, and the length and 1/length of each one
+     *  (by docID). The arrays are shared with the next ones, which only
+     *  write them past this watermark.
+     */
+    static class Published {
+    	final int watermark;
+    	final int count;
+    	final long totalLength;
+    	final int[] lengths;
+    	final double[] norms;
+
+    	Published(int watermark, int count, long totalLength, int[] lengths, double[] norms) {
+    		this.watermark = watermark;
+    		this.count = count;
+    		this.totalLength = totalLength;
+    		this.lengths = lengths;
+    		this.norms = norms;
+    	}
+    }
+
+
+    /**
+     *  The postings list of a term, owned by the indexer, and its last published view.
+     */
+    static class Postings {
+    	PostingsList list;
+    	volatile PostingsList view = null;
+
+    	Postings(PostingsList list) {
+    		this.list = list;
+    	}
+    }
+
+
+    /** The index as a concurrent hashtable. */
+    public ConcurrentHashMap<String,Postings> index = new ConcurrentHashMap<String,Postings>();
+
+    /** The lists that received postings of the current document. */
+    ArrayList<Postings> touched = new ArrayList<Postings>();
+
+    /** The document being inserted. */
+    int currentDoc = -1;
+
+    /** The complete documents, visible to searches. */
+    volatile Published published = new Published(0, 0, 0, new int[0], new double[0]);
+
+    /** The last snapshot taken. */
+    volatile Snapshot lastSnapshot = null;
+
+
+    /**
+     *  Inserts this token in the hashtable. Documents must be inserted in
+     *  increasing docID order; starting a new document publishes the previous one.
+     */
+    public synchronized boolean insert( String token, int docID, int offset ) {
+    	if(docID < published.watermark)
+    		throw new IllegalArgumentException("Document " + docID + " is already published");
+    	if(docID != currentDoc) {
+    		if(docID < currentDoc)
+    			throw new IllegalArgumentException("Documents must be inserted in increasing docID order");
+    		publish(docID);
+    		currentDoc = docID;
+    	}
+    	Postings p = index.get(token);
+    	if(p == null) {
+    		p = new Postings(new PostingsList(docID, offset));
+    		index.put(token, p);
+    		touched.add(p);
+    		return true;
+    	}
+    	PostingsList list = p.list;
+    	if(list.docIDs[list.size-1] != docID)
+    		touched.add(p);
+    	list.addPosting(docID, offset);
+    	return false;
+    }
+
+
+    /**
+     *  Appends whole postings lists, whose documents all come after the ones
+     *  inserted so far, and publishes them.
+     */
+    public synchronized void insertAll( Map<String,PostingsList> lists ) {
+    	int last = currentDoc;
+    	for(Map.Entry<String,PostingsList> entry : lists.entrySet()) {
+    		PostingsList list = entry.getValue();
+    		if(list.size() == 0)
+    			continue;
+    		if(list.getDocID(0) <= currentDoc)
+    			throw new IllegalArgumentException("Documents must be inserted in increasing docID order");
+    		Postings p = index.get(entry.getKey());
+    		if(p == null) {
+    			p = new Postings(new PostingsList(list));
+    			index.put(entry.getKey(), p);
+    		} else {
+    			p.list.addAll(list);
+    		}
+    		touched.add(p);
+    		last = Math.max(last, list.getDocID(list.size()-1));
+    	}
+    	publish(last + 1);
+    	currentDoc = last;
+    }
+
+
+    /**
+     *  Publishes the views of the touched lists, then makes the documents
+     *  before <code>nextDoc</code> visible, with their lengths (which the
+     *  indexer records before it moves on to the next document).
+     */
+    private void publish( int nextDoc ) {
+    	for(Postings p : touched) {
+    		p.view = p.list.view(p.list.size());
+    	}
+    	touched.clear();
+
+    	Published last = published;
+    	int[] lengths = last.lengths;
+    	double[] norms = last.norms;
+    	if(nextDoc > lengths.length) {
+    		lengths = Arrays.copyOf(lengths, Math.max(nextDoc, 2*lengths.length));
+    		Arrays.fill(lengths, last.lengths.length, lengths.length, -1);
+    		norms = Arrays.copyOf(norms, lengths.length);
+    	}
+    	int count = last.count;
+    	long totalLength = last.totalLength;
+    	for(int doc = last.watermark; doc < nextDoc; doc++) {
+    		Integer len = docLengths.get(doc);
+    		if(len == null)
+    			continue;
+    		lengths[doc] = len;
+    		if(len > 0)
+    			norms[doc] = 1.0 / len;
+    		count++;
+    		totalLength += len;
+    	}
+    	published = new Published(nextDoc, count, totalLength, lengths, norms);
+    }
+
+
+    /**
+     *  Returns a point-in-time view of the index: the documents complete now,
+     *  and none of the ones inserted afterwards.
+     */
+    public Snapshot snapshot() {
+    	Snapshot last = lastSnapshot;
+    	Published p = published;
+    	if(last != null && last.watermark == p.watermark)
+    		return last;
+    	last = new Snapshot(p);
+    	lastSnapshot = last;
+    	return last;
+    }
+
+
+    /**
+     *  Returns the postings for a specific term, or null
+     *  if the term is not in the index.
+     */
+    public PostingsList getPostings( String token ) {
+    	return snapshot().getPostings(token);
+    }
+
+
+    /**
+     *  Returns the statistics of the documents visible now.
+     */
+    public ScoringStatistics getStatistics() {
+    	return snapshot().getStatistics();
+    }
+
+
+    /**
+     *  Publishes the last document once indexing is done.
+     */
+    public synchronized void cleanup() {
+    	if(currentDoc >= published.watermark) {
+    		publish(currentDoc + 1);
+    		currentDoc++;
+    	}
+    }
+
+
+    /**
+     *  The index as it was when the snapshot was taken. Read-only.
+     */
+    public class Snapshot implements SearchableIndex {
+
+    	/** Only the documents with a smaller docID are seen. */
+    	final int watermark;
+
+    	/** Statistics of the snapshot. */
+    	final Statistics stats;
+
+    	Snapshot( Published published ) {
+    		this.watermark = published.watermark;
+    		this.stats = new Statistics(published);
+    	}
+
+    	public PostingsList getPostings( String token ) {
+    		Postings p = index.get(token);
+    		if(p == null)
+    			return null;
+    		PostingsList view = p.view;
+    		if(view == null)
+    			return null;
+    		// the view may hold documents published after the snapshot
+    		int n = view.advance(0, watermark);
+    		if(n == 0)
+    			return null;
+    		return n == view.size() ? view : view.view(n);
+    	}
+
+    	public ScoringStatistics getStatistics() {
+    		return stats;
+    	}
+
+
+    	/**
+    	 *  The statistics of the snapshot: those of the documents as published,
+    	 *  and those of a term computed from its postings in the snapshot, the
+    	 *  first time its id is asked for.
+    	 */
+    	class Statistics extends ScoringStatistics {
+
+    		Statistics( Published published ) {
+    			N = published.count;
+    			docIDBound = published.watermark;
+    			docLengths = published.lengths;
+    			docNorms = published.norms;
+    			avgLength = N > 0 ? (double) published.totalLength / N : 0;
+    		}
+
+    		public synchronized int getTermID( String term ) {
+    			int id = super.getTermID(term);
+    			if(id >= 0)
+    				return id;
+    			PostingsList list = getPostings(term);
+    			if(list == null)
+    				return -1;
+    			addTerm(term, list);
+    			id = terms - 1;
+    			if(idf.length <= id)
+    				idf = Arrays.copyOf(idf, df.length);
+    			idf[id] = Math.log((double) N / (double) df[id]);
+    			return id;
+    		}
+
+    		// the per-term arrays grow while other queries use them
+
+    		public synchronized int df( int termID ) {
+    			return super.df(termID);
+    		}
+
+    		public synchronized double idf( int termID ) {
+    			return super.idf(termID);
+    		}
+
+    		public synchronized double maxTfNorm( int termID ) {
+    			return super.maxTfNorm(termID);
+    		}
+
+    		public synchronized int maxTf( int termID ) {
+    			return super.maxTf(termID);
+    		}
+
+    		public synchronized int minLength( int termID ) {
+    			return super.minLength(termID);
+    		}
+    	}
+    }
+}
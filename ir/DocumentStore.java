@@ -0,0 +1,294 @@
+package ir;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *  The names and lengths of the documents.
+ *
+ *  A committed index keeps them in a binary file: a header with the number
+ *  of docIDs and of documents with a name and with a length, the length of
+ *  every docID (-1 for unused docIDs), the offsets of the names in a blob,
+ *  and the blob of UTF-8 names. The file is memory-mapped and a document is
+ *  only read when it is looked up, so opening an index takes the same time
+ *  whatever the number of documents. The documents added while indexing are
+ *  kept in hash maps, in front of the file.
+ *
+ *  The two maps <code>names</code> and <code>lengths</code> give access to
+ *  the documents by docID, whether they are in memory or in the file.
+ */
+public class DocumentStore {
+
+    /** Identifies the file format. */
+    static final int MAGIC = 0x444f4332;
+
+    /** Size of the header: the magic number, the number of docIDs, of names and of lengths. */
+    static final int HEADER_LEN = 4 * Integer.BYTES;
+
+    /**
+     *  A mapped file, with the number of docIDs in it, of names and of
+     *  lengths, and the positions of the offsets and of the blob.
+     */
+    static class Mapped {
+    	final MappedByteBuffer buffer;
+    	final int count, nameCount, lengthCount, offsetsPos, blobPos;
+
+    	Mapped( MappedByteBuffer buffer ) {
+    		this.buffer = buffer;
+    		this.count = buffer.getInt(Integer.BYTES);
+    		this.nameCount = buffer.getInt(2 * Integer.BYTES);
+    		this.lengthCount = buffer.getInt(3 * Integer.BYTES);
+    		this.offsetsPos = HEADER_LEN + count * Integer.BYTES;
+    		this.blobPos = offsetsPos + (count + 1) * Integer.BYTES;
+    	}
+    }
+
+    /** The mapped file, or null. */
+    volatile Mapped file = null;
+
+    /** Mapping from docIDs to document names. */
+    public final View<String> names = new View<String>() {
+    	String read( Mapped file, int doc ) {
+    		int start = file.buffer.getInt(file.offsetsPos + doc * Integer.BYTES);
+    		int end = file.buffer.getInt(file.offsetsPos + (doc + 1) * Integer.BYTES);
+    		if(start == end)
+    			return null;
+    		byte[] bytes = new byte[end - start];
+    		file.buffer.get(file.blobPos + start, bytes);
+    		return new String(bytes, StandardCharsets.UTF_8);
+    	}
+
+    	int fileDocs( Mapped file ) {
+    		return file.nameCount;
+    	}
+    };
+
+    /** Mapping from docIDs to document lengths. */
+    public final View<Integer> lengths = new View<Integer>() {
+    	Integer read( Mapped file, int doc ) {
+    		int len = file.buffer.getInt(HEADER_LEN + doc * Integer.BYTES);
+    		return len < 0 ? null : len;
+    	}
+
+    	int fileDocs( Mapped file ) {
+    		return file.lengthCount;
+    	}
+    };
+
+
+    /**
+     *  A map from docIDs to a property of the documents: the documents put
+     *  in it, then those of the file. Safe to read while documents are put.
+     *  Only the documents put in memory can be removed.
+     */
+    public abstract class View<V> extends AbstractMap<Integer,V> {
+
+    	/** The documents put since the file was opened. */
+    	ConcurrentHashMap<Integer,V> memory = new ConcurrentHashMap<Integer,V>();
+
+    	/** Number of documents in memory and not in the file. */
+    	AtomicInteger added = new AtomicInteger();
+
+    	/** Reads the value of a document in the file, or null. */
+    	abstract V read( Mapped file, int doc );
+
+    	/** Number of documents in the file (recorded in its header), those overridden in memory included. */
+    	abstract int fileDocs( Mapped file );
+
+    	V readFile( int doc ) {
+    		Mapped f = file;
+    		return f != null && doc >= 0 && doc < f.count ? read(f, doc) : null;
+    	}
+
+    	/** Number of docIDs in the file. */
+    	int fileCount() {
+    		Mapped f = file;
+    		return f != null ? f.count : 0;
+    	}
+
+    	/** Forgets the documents in memory. */
+    	void clearMemory() {
+    		memory.clear();
+    		added.set(0);
+    	}
+
+    	public V get( Object key ) {
+    		if(!(key instanceof Integer))
+    			return null;
+    		V value = memory.get(key);
+    		return value != null ? value : readFile((Integer) key);
+    	}
+
+    	public boolean containsKey( Object key ) {
+    		return get(key) != null;
+    	}
+
+    	public V put( Integer key, V value ) {
+    		V old = memory.put(key, value);
+    		if(old != null)
+    			return old;
+    		old = readFile(key);
+    		if(old == null)
+    			added.incrementAndGet();
+    		return old;
+    	}
+
+    	/**
+    	 *  Removes a document put in memory. A document of the file cannot be
+    	 *  removed (a committed document is deleted with a tombstone).
+    	 */
+    	public V remove( Object key ) {
+    		if(!(key instanceof Integer))
+    			return null;
+    		if(readFile((Integer) key) != null)
+    			throw new UnsupportedOperationException("Document " + key + " is in the document file and cannot be removed");
+    		V old = memory.remove(key);
+    		if(old != null)
+    			added.decrementAndGet();
+    		return old;
+    	}
+
+    	public int size() {
+    		Mapped f = file;
+    		return added.get() + (f != null ? fileDocs(f) : 0);
+    	}
+
+    	public void clear() {
+    		DocumentStore.this.clear();
+    	}
+
+    	public Set<Map.Entry<Integer,V>> entrySet() {
+    		return new AbstractSet<Map.Entry<Integer,V>>() {
+    			public int size() {
+    				return View.this.size();
+    			}
+
+    			public Iterator<Map.Entry<Integer,V>> iterator() {
+    				// the documents of the file not overridden, then those in memory
+    				final Iterator<Map.Entry<Integer,V>> inMemory = memory.entrySet().iterator();
+    				final int count = fileCount();
+    				return new Iterator<Map.Entry<Integer,V>>() {
+    					int doc = -1;
+    					Map.Entry<Integer,V> next = advance();
+
+    					Map.Entry<Integer,V> advance() {
+    						while(++doc < count) {
+    							if(memory.containsKey(doc))
+    								continue;
+    							V value = readFile(doc);
+    							if(value != null)
+    								return new AbstractMap.SimpleImmutableEntry<Integer,V>(doc, value);
+    						}
+    						return inMemory.hasNext() ? inMemory.next() : null;
+    					}
+
+    					public boolean hasNext() {
+    						return next != null;
+    					}
+
+    					public Map.Entry<Integer,V> next() {
+    						if(next == null)
+    							throw new NoSuchElementException();
+    						Map.Entry<Integer,V> entry = next;
+    						next = advance();
+    						return entry;
+    					}
+    				};
+    			}
+    		};
+    	}
+    }
+
+
+    /**
+     *  Maps a file written by <code>write</code>. The documents in memory are
+     *  forgotten: the file is expected to hold them.
+     */
+    public synchronized void open( String fileName ) throws IOException {
+    	try (RandomAccessFile raf = new RandomAccessFile(fileName, "r")) {
+    		if(raf.length() > Integer.MAX_VALUE)
+    			throw new IOException("The document file " + fileName + " is too large to be mapped");
+    		MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+    		if(map.limit() < HEADER_LEN || map.getInt(0) != MAGIC)
+    			throw new IOException("The document file " + fileName + " is not in the binary format, the index has to be rebuilt");
+    		file = new Mapped(map);
+    	}
+    	names.clearMemory();
+    	lengths.clearMemory();
+    }
+
+
+    /**
+     *  Writes all the documents, in docID order. The file is written aside
+     *  and then renamed, so a mapped previous version stays readable.
+     */
+    public synchronized void write( String fileName ) throws IOException {
+    	int n = 0;
+    	for(int doc : names.keySet())
+    		n = Math.max(n, doc + 1);
+    	for(int doc : lengths.keySet())
+    		n = Math.max(n, doc + 1);
+
+    	int[] lens = new int[n];
+    	byte[][] blob = new byte[n][];
+    	int nameCount = 0, lengthCount = 0;
+    	for(int doc = 0; doc < n; doc++) {
+    		Integer len = lengths.get(doc);
+    		lens[doc] = len == null ? -1 : len;
+    		if(len != null)
+    			lengthCount++;
+    		String name = names.get(doc);
+    		blob[doc] = name == null ? new byte[0] : name.getBytes(StandardCharsets.UTF_8);
+    		if(blob[doc].length > 0)
+    			nameCount++;
+    	}
+
+    	File tmp = new File(fileName + ".tmp");
+    	try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), BulkIndexWriter.BUFFER_SIZE))) {
+    		out.writeInt(MAGIC);
+    		out.writeInt(n);
+    		out.writeInt(nameCount);
+    		out.writeInt(lengthCount);
+    		for(int len : lens) {
+    			out.writeInt(len);
+    		}
+    		int offset = 0;
+    		for(int doc = 0; doc < n; doc++) {
+    			out.writeInt(offset);
+    			offset += blob[doc].length;
+    		}
+    		out.writeInt(offset);
+    		for(byte[] name : blob) {
+    			out.write(name);
+    		}
+    	}
+    	Files.move(tmp.toPath(), new File(fileName).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+
+    /**
+     *  Forgets all the documents, in memory and in the file.
+     */
+    public synchronized void clear() {
+    	file = null;
+    	names.clearMemory();
+    	lengths.clearMemory();
+    }
+}
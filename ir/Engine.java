@@ -11,6 +11,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 
@@ -23,6 +24,7 @@ public class Engine {
     Index index = new HashedIndex();
     //Index index = new PersistentHashedIndex();
     //Index index = new PersistentScalableHashedIndex();
+    //Index index = new ConcurrentHashedIndex();
     
     KGramIndex kgIndex = new KGramIndex(2);
     HashMap<String, Double> pagerank = new HashMap<String, Double>();
@@ -55,6 +57,28 @@ public class Engine {
     /** For persistent indexes, we might not need to do any indexing. */
     boolean is_indexing = true;
 
+    /** For a scalable index, index only the files changed since the last commit. */
+    boolean is_updating = false;
+
+    /** Memory budget of a scalable index in MB (0 keeps its default). */
+    long memory_budget = 0;
+
+    /** Number of indexing threads (1 indexes sequentially). */
+    int indexing_threads = 1;
+
+    /** Number of background merge threads of a scalable index (0 keeps its default). */
+    int merge_threads = 0;
+
+    /** For persistent indexes, commit a sorted dictionary instead of the hash table. */
+    boolean sorted_dictionary = false;
+
+    /** Keep the k-gram postings in compressed bitmaps. */
+    boolean kgram_bitmaps = false;
+
+    /** The BM25 parameters. */
+    double bm25_k1 = 1.2;
+    double bm25_b = 0.75;
+
 
     /* ----------------------------------------------- */
 
@@ -87,28 +111,75 @@ public class Engine {
      */
     public Engine( String[] args ) {
 	decodeArgs( args );
-	indexer = new Indexer( index, patterns_file, kgIndex );
+	if ( memory_budget > 0 && index instanceof PersistentScalableHashedIndex ) {
+	    ((PersistentScalableHashedIndex) index).memoryBudget = memory_budget << 20;
+	}
+	if ( merge_threads > 0 && index instanceof PersistentScalableHashedIndex ) {
+	    ((PersistentScalableHashedIndex) index).mergeThreads = merge_threads;
+	}
+	kgIndex.useBitmaps = kgram_bitmaps;
+	if ( index instanceof PersistentHashedIndex && ( !is_indexing || is_updating )) {
+	    // The k-gram index of the committed terms, loaded on first use
+	    try {
+	        kgIndex.open( PersistentHashedIndex.INDEXDIR + "/" + PersistentHashedIndex.KGRAM_FNAME );
+	    }
+	    catch ( FileNotFoundException e ) {
+	    }
+	    catch ( IOException e ) {
+	        e.printStackTrace();
+	    }
+	}
+	if ( sorted_dictionary && index instanceof PersistentHashedIndex ) {
+	    ((PersistentHashedIndex) index).useSortedDictionary = true;
+	}
+	if ( !is_indexing && index instanceof PersistentHashedIndex ) {
+	    // Nothing will be written: read the index through memory-mapped files
+	    ((PersistentHashedIndex) index).mapFiles();
+	}
+	if ( is_updating && index instanceof PersistentScalableHashedIndex ) {
+	    indexer = new IncrementalIndexer( (PersistentScalableHashedIndex) index, patterns_file, kgIndex );
+	} else if ( indexing_threads > 1 ) {
+	    indexer = new ParallelIndexer( index, patterns_file, kgIndex, indexing_threads );
+	} else {
+	    indexer = new Indexer( index, patterns_file, kgIndex );
+	}
 	speller = new SpellChecker(index, kgIndex);
 	searcher = new Searcher( index, kgIndex, pagerank );
+	searcher.bm25Scorer = new BM25Scorer( bm25_k1, bm25_b );
 	gui = new SearchGUI( this );
 	gui.init();
 	/* 
 	 *   Calls the indexer to index the chosen directory structure.
 	 *   Access to the index is synchronized since we don't want to 
 	 *   search at the same time we're indexing new files (this might 
-	 *   corrupt the index).
+	 *   corrupt the index). A ConcurrentHashedIndex can be searched
+	 *   while it is being built, so searches are not locked out then:
+	 *   they read snapshots of it, and the k-gram index used by wildcards
+	 *   and spelling correction locks out its inserts while it is read.
 	 */
 	if (is_indexing) {
-            synchronized ( indexLock ) {
+            Object lock = index instanceof ConcurrentHashedIndex ? new Object() : indexLock;
+            synchronized ( lock ) {
                 gui.displayInfoText( "Indexing, please wait..." );
                 long startTime = System.currentTimeMillis();
                 for ( int i=0; i<dirNames.size(); i++ ) {
                     File dokDir = new File( dirNames.get( i ));
                     indexer.processFiles( dokDir );
                 }
+                if ( indexer instanceof IncrementalIndexer ) {
+                    ((IncrementalIndexer) indexer).removeMissing();
+                }
                 long elapsedTime = System.currentTimeMillis() - startTime;
                 gui.displayInfoText( String.format( "Indexing done in %.1f seconds.", elapsedTime/1000.0 ));
                 index.cleanup();
+                if ( index instanceof PersistentHashedIndex ) {
+                    try {
+                        kgIndex.write( PersistentHashedIndex.INDEXDIR + "/" + PersistentHashedIndex.KGRAM_FNAME );
+                    }
+                    catch ( IOException e ) {
+                        e.printStackTrace();
+                    }
+                }
                 ReadPageRank();
             }
         } else {
@@ -149,6 +220,48 @@ public class Engine {
 		    rank_file = args[i++];
 		}
 	    }	
+	    else if ( "-k1".equals( args[i] )) {
+		i++;
+		if ( i < args.length ) {
+		    bm25_k1 = Double.parseDouble( args[i++] );
+		}
+	    }
+	    else if ( "-b".equals( args[i] )) {
+		i++;
+		if ( i < args.length ) {
+		    bm25_b = Double.parseDouble( args[i++] );
+		}
+	    }
+	    else if ( "-t".equals( args[i] )) {
+		i++;
+		if ( i < args.length ) {
+		    indexing_threads = Integer.parseInt( args[i++] );
+		}
+	    }
+	    else if ( "-mb".equals( args[i] )) {
+		i++;
+		if ( i < args.length ) {
+		    memory_budget = Long.parseLong( args[i++] );
+		}
+	    }
+	    else if ( "-mt".equals( args[i] )) {
+		i++;
+		if ( i < args.length ) {
+		    merge_threads = Integer.parseInt( args[i++] );
+		}
+	    }
+	    else if ( "-u".equals( args[i] )) {
+                i++;
+                is_updating = true;
+            }
+	    else if ( "-kb".equals( args[i] )) {
+                i++;
+                kgram_bitmaps = true;
+            }
+	    else if ( "-sd".equals( args[i] )) {
+                i++;
+                sorted_dictionary = true;
+            }
 	    else if ( "-ni".equals( args[i] )) {
                 i++;
                 is_indexing = false;
@@ -10,6 +10,7 @@ package ir;
 
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 
 
 /**
@@ -21,18 +22,40 @@ public class HashedIndex implements Index {
     /** The index as a hashtable. */
     public HashMap<String,PostingsList> index = new HashMap<String,PostingsList>();
 
+    /** Statistics for ranked retrieval, computed when indexing is done. */
+    ScoringStatistics stats = null;
+
 
     /**
      *  Inserts this token in the hashtable.
      */
-    public void insert( String token, int docID, int offset ) {
+    public boolean insert( String token, int docID, int offset ) {
 		//
 		// YOUR CODE HERE
 		//
-    	if(!index.containsKey(token)) {
+    	stats = null;
+    	PostingsList list = index.get(token);
+    	if(list == null) {
     		index.put(token, new PostingsList(docID, offset));
-    	} else {
-    		index.get(token).addPosting(docID, offset);
+    		return true;
+    	}
+    	list.addPosting(docID, offset);
+    	return false;
+    }
+
+
+    /**
+     *  Appends postings lists whose documents all come after the ones
+     *  inserted so far. The lists of new terms are taken over.
+     */
+    public void insertAll( Map<String,PostingsList> lists ) {
+    	stats = null;
+    	for(Map.Entry<String,PostingsList> entry : lists.entrySet()) {
+    		PostingsList list = index.get(entry.getKey());
+    		if(list == null)
+    			index.put(entry.getKey(), entry.getValue());
+    		else
+    			list.addAll(entry.getValue());
     	}
     }
 
@@ -50,9 +73,24 @@ public class HashedIndex implements Index {
 
 
     /**
-     *  No need for cleanup in a HashedIndex.
+     *  Returns the statistics for ranked retrieval, computing them if the
+     *  index has changed since they were last computed.
+     */
+    public ScoringStatistics getStatistics() {
+    	if(stats == null)
+    		stats = ScoringStatistics.build(index, docLengths);
+    	return stats;
+    }
+
+
+    /**
+     *  Trims the postings lists once indexing is done.
      */
     public void cleanup() {
+    	for(PostingsList list : index.values()) {
+    		list.trimToSize();
+    	}
+    	getStatistics();
     	//PageRankSparse pr = new PageRankSparse( "linksDavis.txt" );
     }
     
@@ -0,0 +1,109 @@
+package ir;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Map;
+
+
+/**
+ *   Brings a committed PersistentScalableHashedIndex up to date with the
+ *   files, indexing only what changed.
+ *
+ *   Every file is compared with the manifest of the index. New files are
+ *   indexed under new docIDs. A modified file is deleted (its docID gets a
+ *   tombstone) and indexed again under a new docID. Files of the manifest
+ *   that were not found any more are deleted. Unchanged files are neither
+ *   read nor tokenized, and only the files whose time or size changed are
+ *   hashed.
+ */
+public class IncrementalIndexer extends Indexer {
+
+	/** The index being updated. */
+	PersistentScalableHashedIndex persistent;
+
+	/** The paths of the files found so far. */
+	HashSet<String> seen = new HashSet<String>();
+
+	/** Numbers of new, modified, unchanged and deleted files. */
+	int added = 0, modified = 0, unchanged = 0, deleted = 0;
+
+
+	/** Constructor */
+	public IncrementalIndexer( PersistentScalableHashedIndex index, String patterns_file, KGramIndex kgIndex ) {
+		super( index, patterns_file, kgIndex );
+		this.persistent = index;
+		index.beginUpdate();
+		lastDocID = index.nextDocID();
+	}
+
+
+	/**
+	 *  Indexes the new and modified files among @code{f} and, if <code>f</code>
+	 *  is a directory, its files and subdirectories.
+	 */
+	public void processFiles( File f ) {
+		// do not try to index fs that cannot be read
+		if ( f.canRead() ) {
+			if ( f.isDirectory() ) {
+				String[] fs = f.list();
+				// an IO error could occur
+				if ( fs != null ) {
+					for ( int i=0; i<fs.length; i++ ) {
+						processFiles( new File( f, fs[i] ));
+					}
+				}
+			} else {
+				seen.add( f.getPath() );
+				Manifest.Entry entry = persistent.manifest.entries.get( f.getPath() );
+				try {
+					if ( entry != null && entry.sameStat( f )) {
+						unchanged++;
+						return;
+					}
+					long hash = Manifest.hash( f );
+					if ( entry != null && entry.hash == hash ) {
+						// touched, but the same content
+						entry.modified = f.lastModified();
+						entry.size = f.length();
+						unchanged++;
+						return;
+					}
+					if ( entry != null ) {
+						persistent.delete( entry.docID );
+						modified++;
+					} else {
+						added++;
+					}
+					int docID = generateDocID();
+					indexFile( f, docID );
+					persistent.manifest.entries.put( f.getPath(), new Manifest.Entry( docID, f.lastModified(), f.length(), hash ));
+				}
+				catch ( IOException e ) {
+					System.err.println( "Warning: IOException during indexing." );
+				}
+			}
+		}
+	}
+
+
+	/**
+	 *  Deletes the documents of the files that were not found by processFiles.
+	 *  To be called once all directories are processed.
+	 */
+	public void removeMissing() {
+		ArrayList<String> missing = new ArrayList<String>();
+		for ( Map.Entry<String,Manifest.Entry> entry : persistent.manifest.entries.entrySet() ) {
+			if ( !seen.contains( entry.getKey() )) {
+				persistent.delete( entry.getValue().docID );
+				missing.add( entry.getKey() );
+			}
+		}
+		for ( String path : missing ) {
+			persistent.manifest.entries.remove( path );
+		}
+		deleted += missing.size();
+		System.err.println( added + " new, " + modified + " modified, " + deleted + " deleted, " + unchanged + " unchanged files" );
+	}
+}
@@ -7,26 +7,33 @@
 
 package ir;
 
-import java.util.HashMap;
+import java.util.BitSet;
 import java.util.Iterator;
+import java.util.Map;
 
 /**
  *  Defines some common data structures and methods that all types of
  *  index should implement.
  */
-public interface Index {
+public interface Index extends SearchableIndex {
 
-    /** Mapping from document identifiers to document names. */
-    public HashMap<Integer,String> docNames = new HashMap<Integer,String>();
+    /** The names and lengths of the documents, in memory or in a mapped file. */
+    public DocumentStore documents = new DocumentStore();
+
+    /** Mapping from document identifiers to document names (safe to read while indexing). */
+    public Map<Integer,String> docNames = documents.names;
     
-    /** Mapping from document identifier to document length. */
-    public HashMap<Integer,Integer> docLengths = new HashMap<Integer,Integer>();
+    /** Mapping from document identifier to document length (safe to read while indexing). */
+    public Map<Integer,Integer> docLengths = documents.lengths;
+
+    /** The deleted documents (tombstones): their postings stay in the index, but they are never returned. */
+    public BitSet deletedDocs = new BitSet();
 
-    /** Inserts a token into the index. */
-    public void insert( String token, int docID, int offset );
+    /** Inserts a token into the index. Returns true if the term was not in (the in-memory part of) the index yet. */
+    public boolean insert( String token, int docID, int offset );
 
-    /** Returns the postings for a given term. */
-    public PostingsList getPostings( String token );
+    /** Appends postings lists whose documents all come after the ones inserted so far. The lists may be taken over. */
+    public void insertAll( Map<String,PostingsList> lists );
 
     /** This method is called on exit. */
     public void cleanup();
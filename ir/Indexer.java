@@ -26,11 +26,14 @@ public class Indexer {
 	KGramIndex kgIndex;
 
 	/** The next docID to be generated. */
-	private int lastDocID = 0;
+	int lastDocID = 0;
 
 	/** The patterns matching non-standard words (e-mail addresses, etc.) */
 	String patterns_file;
 
+	/** The terms of the file being indexed that were new to the index, in order of first occurrence. */
+	ArrayList<String> newTerms = new ArrayList<String>();
+
 
 	/* ----------------------------------------------- */
 
@@ -44,7 +47,7 @@ public class Indexer {
 
 
 	/** Generates a new document identifier as an integer. */
-	private int generateDocID() {
+	int generateDocID() {
 		return lastDocID++;
 	}
 
@@ -69,42 +72,62 @@ public class Indexer {
 				// First register the document and get a docID
 				int docID = generateDocID();
 				if ( docID%1000 == 0 ) System.err.println( "Indexed " + docID + " files" );
-				index.docNames.put( docID, f.getPath() );
-				try {
-					//  Read the first few bytes of the file to see if it is 
-					// likely to be a PDF 
-					Reader reader = new InputStreamReader( new FileInputStream(f), StandardCharsets.UTF_8 );
-					char[] buf = new char[4];
-					reader.read( buf, 0, 4 );
-					reader.close();
-					if ( buf[0] == '%' && buf[1]=='P' && buf[2]=='D' && buf[3]=='F' ) {
-						// We assume this is a PDF file
-						try {
-							String contents = extractPDFContents( f );
-							reader = new StringReader( contents );
-						}
-						catch ( IOException e ) {
-							// Perhaps it wasn't a PDF file after all
-							reader = new InputStreamReader( new FileInputStream(f), StandardCharsets.UTF_8 );
-						}
-					} else {
-						// We hope this is ordinary text
-						reader = new InputStreamReader( new FileInputStream(f), StandardCharsets.UTF_8 );
-					}
-					Tokenizer tok = new Tokenizer( reader, true, false, true, patterns_file );
-					int offset = 0;
-					while ( tok.hasMoreTokens() ) {
-						String token = tok.nextToken();
-						insertIntoIndex( docID, token, offset++ );
-					}
-					index.docLengths.put( docID, offset );
-					reader.close();
-				}
-				catch ( IOException e ) {
-					System.err.println( "Warning: IOException during indexing." );
-				}
+				indexFile( f, docID );
+			}
+		}
+	}
+
+
+	/**
+	 *  Tokenizes and indexes the file @code{f} under the identifier <code>docID</code>.
+	 */
+	void indexFile( File f, int docID ) {
+		index.docNames.put( docID, f.getPath() );
+		try {
+			Reader reader = openReader( f );
+			Tokenizer tok = new Tokenizer( reader, true, false, true, patterns_file );
+			int offset = 0;
+			while ( tok.hasMoreTokens() ) {
+				String token = tok.nextToken();
+				insertIntoIndex( docID, token, offset++ );
 			}
+			index.docLengths.put( docID, offset );
+			reader.close();
+		}
+		catch ( IOException e ) {
+			System.err.println( "Warning: IOException during indexing." );
 		}
+		// The k-grams are only indexed for the terms new to the index
+		kgIndex.insertAll( newTerms, 1 );
+		newTerms.clear();
+	}
+
+	/**
+	 *  Opens the text of the file <code>f</code>, extracting it first if
+	 *  <code>f</code> is a PDF file.
+	 */
+	Reader openReader( File f ) throws IOException {
+		//  Read the first few bytes of the file to see if it is 
+		// likely to be a PDF 
+		Reader reader = new InputStreamReader( new FileInputStream(f), StandardCharsets.UTF_8 );
+		char[] buf = new char[4];
+		reader.read( buf, 0, 4 );
+		reader.close();
+		if ( buf[0] == '%' && buf[1]=='P' && buf[2]=='D' && buf[3]=='F' ) {
+			// We assume this is a PDF file
+			try {
+				String contents = extractPDFContents( f );
+				reader = new StringReader( contents );
+			}
+			catch ( IOException e ) {
+				// Perhaps it wasn't a PDF file after all
+				reader = new InputStreamReader( new FileInputStream(f), StandardCharsets.UTF_8 );
+			}
+		} else {
+			// We hope this is ordinary text
+			reader = new InputStreamReader( new FileInputStream(f), StandardCharsets.UTF_8 );
+		}
+		return reader;
 	}
 
 	/*
@@ -179,11 +202,13 @@ public class Indexer {
 
 
 	/**
-	 *  Indexes one token.
+	 *  Indexes one token. The k-grams of a new term are indexed with the
+	 *  other new terms of the file, once it is read.
 	 */
 	public void insertIntoIndex( int docID, String token, int offset ) {
-		index.insert( token, docID, offset );
-		kgIndex.insert(token);
+		if ( index.insert( token, docID, offset )) {
+			newTerms.add( token );
+		}
 	}
 }
 
@@ -9,9 +9,23 @@ package ir;
 
 import java.io.*;
 import java.util.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 
+/**
+ *  The k-grams of the terms, for wildcard queries and spelling correction.
+ *
+ *  The index can be read while terms are inserted, e.g. while a
+ *  ConcurrentHashedIndex is searched during indexing: the inserts hold the
+ *  write lock, the reads the read lock, and the postings returned are views
+ *  that later inserts do not change.
+ */
 public class KGramIndex {
 
     /** Mapping from term ids to actual term strings */
@@ -20,8 +34,14 @@ public class KGramIndex {
     /** Mapping from term strings to term ids */
     HashMap<String, Integer> term2id = new HashMap<String,Integer>();
 
-    /** Index from k-grams to list of term ids that contain the k-gram */
-    HashMap<String, List<KGramPostingsEntry>> index = new HashMap<String,List<KGramPostingsEntry>>();
+    /** Index from k-grams to the sorted ids of the terms that contain the k-gram */
+    HashMap<String, KGramPostings> index = new HashMap<String,KGramPostings>();
+
+    /** Whether the k-gram postings are compressed bitmaps rather than int arrays (to be set before inserting terms) */
+    public boolean useBitmaps = false;
+
+    /** Index from k-grams to the bitmaps of the ids of the terms that contain the k-gram, when useBitmaps is set */
+    HashMap<String, RoaringBitmap> bitmaps = new HashMap<String,RoaringBitmap>();
 
     /** The ID of the last processed term */
     int lastTermID = -1;
@@ -29,6 +49,40 @@ public class KGramIndex {
     /** Number of symbols to form a K-gram */
     int K = 3;
 
+    /**
+     *  Tries of the terms and of the reversed terms, for wildcards, and the
+     *  last term ID in them. The terms inserted since the last wildcard get
+     *  tries of their own, merged with the previous ones as long as these
+     *  are not larger: there are O(log n) tries, and a term is merged
+     *  O(log n) times.
+     */
+    static class Tries {
+    	final TermTrie[] prefix, suffix;
+    	final int lastTermID;
+
+    	Tries( TermTrie[] prefix, TermTrie[] suffix, int lastTermID ) {
+    		this.prefix = prefix;
+    		this.suffix = suffix;
+    		this.lastTermID = lastTermID;
+    	}
+    }
+    private Tries tries = new Tries(new TermTrie[0], new TermTrie[0], -1);
+
+    /** Minimum number of new terms per thread for insertAll to use several threads */
+    static final int MIN_TERMS_PER_THREAD = 10000;
+
+    /** Identifies the file format of a written k-gram index */
+    static final int MAGIC = 0x4b474932;
+
+    /** Size of the header: the magic number, K, and the numbers of terms and k-grams */
+    static final int HEADER_LEN = 4 * Integer.BYTES;
+
+    /** A file opened by open() and not loaded yet */
+    private volatile MappedByteBuffer file = null;
+
+    /** Held for writing by the inserts, and for reading by the lookups */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
     public KGramIndex(int k) {
         K = k;
         if (k <= 0) {
@@ -48,28 +102,38 @@ public class KGramIndex {
 
 
     /**
-     *  Get intersection of two postings lists
+     *  Get intersection of two postings lists, by a linear merge or galloping
      */
-    public List<KGramPostingsEntry> intersect(List<KGramPostingsEntry> p1, List<KGramPostingsEntry> p2) {
-        // 
-        // YOUR CODE HERE
-        //
-    	
+    public KGramPostings intersect(KGramPostings p1, KGramPostings p2) {
     	if(p1 == null || p2 == null)
     		return null;
-    	
-    	List<KGramPostingsEntry> result = new ArrayList<KGramPostingsEntry>();
-    	
-    	for(int i = 0; i < p1.size(); i++) {
-    		int p1id = p1.get(i).tokenID;
-    		for(int j = 0; j < p2.size(); j++) {
-    			if(p1id == p2.get(j).tokenID) {
-    				result.add(new KGramPostingsEntry(p1id));
-    			}
-    		}
+    	return KGramPostings.intersect(p1, p2);
+    }
+
+
+    /**
+     *  Returns the terms containing all the given k-grams, or null if one of
+     *  them is not in the index. The rarest k-grams are intersected first.
+     */
+    public KGramPostings intersect(Collection<String> kgrams) {
+    	lockForReading();
+    	try {
+    		return intersectLocked(kgrams);
+    	}
+    	finally {
+    		unlockForReading();
     	}
-    	
-    	return result;
+    }
+
+    private KGramPostings intersectLocked(Collection<String> kgrams) {
+    	ArrayList<KGramPostings> lists = new ArrayList<KGramPostings>();
+    	for(String kgram : kgrams) {
+    		KGramPostings postings = getPostingsLocked(kgram);
+    		if(postings == null)
+    			return null;
+    		lists.add(postings);
+    	}
+    	return KGramPostings.intersect(lists);
     }
 
 
@@ -79,48 +143,545 @@ public class KGramIndex {
         // YOUR CODE HERE
         //
     	
-    	if(term2id.containsKey(token) || token.length() < K)
-    		return;
-    	
-    	int id = generateTermID();
-    	
+    	load();
+    	lock.writeLock().lock();
+    	try {
+    		if(term2id.containsKey(token) || token.length() < K)
+    			return;
+
+    		int id = generateTermID();
+    		term2id.put(token, id);
+    		id2term.put(id, token);
+    		addKGrams(token, id);
+    	}
+    	finally {
+    		lock.writeLock().unlock();
+    	}
+    }
+
+
+    /** Adds the id of a new term to the postings of its k-grams. */
+    private void addKGrams( String token, int id ) {
     	String token2 = "$"+token+"$";
     	
     	for(int i = 0; i < token2.length()-K+1; i++) {
     		String kgram = token2.substring(i, i+K);
+    		if(useBitmaps) {
+    			RoaringBitmap set = bitmaps.get(kgram);
+    			if(set == null) {
+    				set = new RoaringBitmap();
+    				bitmaps.put(kgram, set);
+    			}
+    			set.add(id);
+    			continue;
+    		}
+    		KGramPostings postings = index.get(kgram);
+    		if(postings == null) {
+    			postings = new KGramPostings();
+    			index.put(kgram, postings);
+    		}
+    		// the ids grow, so a term repeating a k-gram is only added once
+    		postings.add(id);
+    	}
+    }
+
+    /**
+     *  Inserts the k-grams of several terms at once: only the terms not in
+     *  the index yet are looked at, and they get their ids in the order
+     *  given. With several threads, each thread gathers the postings of a
+     *  shard of the k-grams (by hash) of the new terms, and the postings of
+     *  the shards are then appended to those of the index.
+     */
+    public void insertAll( Collection<String> terms, int threads ) {
+    	load();
+    	lock.writeLock().lock();
+    	try {
+    		insertAllLocked(terms, threads);
+    	}
+    	finally {
+    		lock.writeLock().unlock();
+    	}
+    }
+
+    private void insertAllLocked( Collection<String> terms, int threads ) {
+    	final ArrayList<String> added = new ArrayList<String>();
+    	final int first = lastTermID + 1;
+    	for(String token : terms) {
+    		if(token.length() < K || term2id.containsKey(token))
+    			continue;
+    		int id = generateTermID();
+    		term2id.put(token, id);
+    		id2term.put(id, token);
+    		added.add(token);
+    	}
+    	threads = Math.min(threads, added.size() / MIN_TERMS_PER_THREAD);
+    	if(threads <= 1) {
+    		for(int t = 0; t < added.size(); t++)
+    			addKGrams(added.get(t), first + t);
+    		return;
+    	}
 
-    		if(getPostings(kgram) == null) {
-    			List<KGramPostingsEntry> list = new ArrayList<KGramPostingsEntry>();
-    			list.add(new KGramPostingsEntry(id));
-    			index.put(kgram, list);
-    			term2id.put(token, id);
-    			id2term.put(id, token);
-    		} else {
-    			if(index.get(kgram).get(index.get(kgram).size()-1).tokenID != id) {
-	    			index.get(kgram).add(new KGramPostingsEntry(id));
-	    			term2id.put(token, id);
-	    			id2term.put(id, token);
+    	final ArrayList<HashMap<String,KGramPostings>> shards = new ArrayList<HashMap<String,KGramPostings>>();
+    	Thread[] workers = new Thread[threads];
+    	for(int s = 0; s < threads; s++) {
+    		shards.add(null);
+    		final int shard = s, count = threads;
+    		workers[s] = new Thread() {
+    			public void run() {
+    				HashMap<String,KGramPostings> postings = gather(added, first, shard, count);
+    				synchronized(shards) {
+    					shards.set(shard, postings);
+    				}
     			}
+    		};
+    		workers[s].start();
+    	}
+    	// the ids are given already: the shards are needed whatever happens
+    	boolean interrupted = false;
+    	for(Thread worker : workers) {
+    		while(worker.isAlive()) {
+    			try {
+    				worker.join();
+    			}
+    			catch ( InterruptedException e ) {
+    				interrupted = true;
+    			}
+    		}
+    	}
+    	if(interrupted)
+    		Thread.currentThread().interrupt();
+
+    	synchronized(shards) {
+    		for(HashMap<String,KGramPostings> shard : shards) {
+    			for(Map.Entry<String,KGramPostings> entry : shard.entrySet()) {
+    				String kgram = entry.getKey();
+    				KGramPostings postings = entry.getValue();
+    				if(useBitmaps) {
+    					RoaringBitmap set = bitmaps.get(kgram);
+    					if(set == null) {
+    						set = new RoaringBitmap();
+    						bitmaps.put(kgram, set);
+    					}
+    					for(int i = 0; i < postings.size(); i++)
+    						set.add(postings.get(i));
+    				} else {
+    					KGramPostings old = index.get(kgram);
+    					if(old == null)
+    						index.put(kgram, postings);
+    					else
+    						old.addAll(postings);
+    				}
+    			}
+    		}
+    	}
+    }
+
+
+    /**
+     *  Returns the postings of the k-grams of <code>terms</code>, whose ids
+     *  are <code>first</code>, <code>first+1</code>, ..., restricted to the
+     *  k-grams of one shard out of <code>shards</code>.
+     */
+    private HashMap<String,KGramPostings> gather( List<String> terms, int first, int shard, int shards ) {
+    	HashMap<String,KGramPostings> result = new HashMap<String,KGramPostings>();
+    	for(int t = 0; t < terms.size(); t++) {
+    		String token2 = "$" + terms.get(t) + "$";
+    		for(int i = 0; i < token2.length()-K+1; i++) {
+    			if(shards > 1) {
+    				// the hash of the k-gram, as String.hashCode, without a substring
+    				int h = 0;
+    				for(int j = i; j < i + K; j++)
+    					h = 31 * h + token2.charAt(j);
+    				if(Math.floorMod(h, shards) != shard)
+    					continue;
+    			}
+    			String kgram = token2.substring(i, i+K);
+    			KGramPostings postings = result.get(kgram);
+    			if(postings == null) {
+    				postings = new KGramPostings();
+    				result.put(kgram, postings);
+    			}
+    			postings.add(first + t);
+    		}
+    	}
+    	return result;
+    }
+
+
+    /**
+     *  Returns the IDs of the terms matching a wildcard pattern, where '*'
+     *  stands for any sequence of characters. The candidates are the terms
+     *  of the prefix (found in the trie of the terms) or of the suffix (in
+     *  the trie of the reversed terms), whichever are fewer, so the cost
+     *  follows the number of matches rather than the size of the vocabulary.
+     */
+    public int[] wildcardTerms( String pattern ) {
+    	int first = pattern.indexOf('*'), last = pattern.lastIndexOf('*');
+    	if(first == -1) {
+    		Integer id = getIDByTerm(pattern);
+    		return id == null ? new int[0] : new int[] { id };
+    	}
+    	String prefix = pattern.substring(0, first);
+    	String suffix = pattern.substring(last + 1);
+    	String reversedSuffix = new StringBuilder(suffix).reverse().toString();
+    	lockForReading();
+    	try {
+    		Tries tries = buildTries();
+    		int byPrefixCount = count(tries.prefix, prefix);
+    		int bySuffixCount = count(tries.suffix, reversedSuffix);
+    		boolean byPrefix = byPrefixCount <= bySuffixCount;
+    		int[] candidates = byPrefix ? match(tries.prefix, prefix, byPrefixCount) : match(tries.suffix, reversedSuffix, bySuffixCount);
+    		if(first == last && (byPrefix ? suffix.isEmpty() : prefix.isEmpty()))
+    			return candidates;
+
+    		int n = 0;
+    		for(int id : candidates) {
+    			if(matches(id2term.get(id), pattern))
+    				candidates[n++] = id;
+    		}
+    		return Arrays.copyOf(candidates, n);
+    	}
+    	finally {
+    		unlockForReading();
+    	}
+    }
+
+
+    /** Whether a term matches a wildcard pattern: its prefix, then its middle parts in order, then its suffix. */
+    static boolean matches( String term, String pattern ) {
+    	int first = pattern.indexOf('*'), last = pattern.lastIndexOf('*');
+    	if(first == -1)
+    		return term.equals(pattern);
+    	String prefix = pattern.substring(0, first);
+    	String suffix = pattern.substring(last + 1);
+    	if(term.length() < prefix.length() + suffix.length() || !term.startsWith(prefix) || !term.endsWith(suffix))
+    		return false;
+    	String[] middle = first == last ? new String[0] : pattern.substring(first + 1, last).split("\\*");
+    	int from = prefix.length(), end = term.length() - suffix.length();
+    	for(String part : middle) {
+    		int at = term.indexOf(part, from);
+    		if(at == -1 || at + part.length() > end)
+    			return false;
+    		from = at + part.length();
+    	}
+    	return true;
+    }
+
+
+    private static int count( TermTrie[] tries, String prefix ) {
+    	int count = 0;
+    	for(TermTrie trie : tries)
+    		count += trie.count(prefix);
+    	return count;
+    }
+
+    private static int[] match( TermTrie[] tries, String prefix, int count ) {
+    	int[] result = new int[count];
+    	int n = 0;
+    	for(TermTrie trie : tries) {
+    		int[] ids = trie.match(prefix);
+    		System.arraycopy(ids, 0, result, n, ids.length);
+    		n += ids.length;
+    	}
+    	return result;
+    }
+
+
+    /**
+     *  Adds the tries of the terms inserted since the tries were last
+     *  built, and returns the tries. Called with the read lock held.
+     */
+    private synchronized Tries buildTries() {
+    	if(tries.lastTermID == lastTermID)
+    		return tries;
+    	int first = tries.lastTermID + 1;
+    	String[] terms = new String[lastTermID + 1 - first];
+    	int[] ids = new int[terms.length];
+    	for(int i = 0; i < terms.length; i++) {
+    		ids[i] = first + i;
+    		terms[i] = id2term.get(first + i);
+    	}
+    	tries = new Tries(add(tries.prefix, new TermTrie(terms, ids, false)), add(tries.suffix, new TermTrie(terms, ids, true)), lastTermID);
+    	return tries;
+    }
+
+    /** Appends a trie to tries of decreasing sizes, merging it with the last ones while they are not larger. */
+    private static TermTrie[] add( TermTrie[] tries, TermTrie trie ) {
+    	int n = tries.length;
+    	while(n > 0 && tries[n - 1].size() <= trie.size())
+    		trie = TermTrie.merge(tries[--n], trie);
+    	TermTrie[] result = Arrays.copyOf(tries, n + 1);
+    	result[n] = trie;
+    	return result;
+    }
+
+    /** Merges the tries into one in each direction, to be written. Called with the read lock held. */
+    private synchronized Tries mergeTries() {
+    	Tries all = buildTries();
+    	if(all.prefix.length > 1) {
+    		TermTrie prefix = all.prefix[0], suffix = all.suffix[0];
+    		for(int i = 1; i < all.prefix.length; i++) {
+    			prefix = TermTrie.merge(prefix, all.prefix[i]);
+    			suffix = TermTrie.merge(suffix, all.suffix[i]);
     		}
+    		tries = all = new Tries(new TermTrie[] { prefix }, new TermTrie[] { suffix }, all.lastTermID);
     	}
+    	return all;
+    }
+
+
+    /**
+     *  Locks out the inserts until unlockForReading, e.g. to iterate over
+     *  the bitmaps of getBitmap. May be nested with the other lookups.
+     */
+    public void lockForReading() {
+        // the file is loaded under the write lock, which cannot be taken with the read lock held
+        load();
+        lock.readLock().lock();
+    }
+
+    public void unlockForReading() {
+        lock.readLock().unlock();
     }
 
     /** Get postings for the given k-gram */
-    public List<KGramPostingsEntry> getPostings(String kgram) {
-        //
-        // YOUR CODE HERE
-        //
-        return index.get(kgram);
+    public KGramPostings getPostings(String kgram) {
+        lockForReading();
+        try {
+            return getPostingsLocked(kgram);
+        }
+        finally {
+            unlockForReading();
+        }
+    }
+
+    private KGramPostings getPostingsLocked(String kgram) {
+        if (useBitmaps) {
+            RoaringBitmap set = bitmaps.get(kgram);
+            if (set == null)
+                return null;
+            int[] ids = set.toArray();
+            return new KGramPostings(ids, ids.length);
+        }
+        KGramPostings postings = index.get(kgram);
+        // the ids inserted later go after the end of the view
+        return postings == null ? null : new KGramPostings(postings.ids, postings.size);
+    }
+
+    /**
+     *  Get the bitmap of the given k-gram, when useBitmaps is set. Inserts
+     *  change it: it is only to be read under lockForReading.
+     */
+    public RoaringBitmap getBitmap(String kgram) {
+        lockForReading();
+        try {
+            return bitmaps.get(kgram);
+        }
+        finally {
+            unlockForReading();
+        }
     }
 
     /** Get id of a term */
     public Integer getIDByTerm(String term) {
-        return term2id.get(term);
+        lockForReading();
+        try {
+            return term2id.get(term);
+        }
+        finally {
+            unlockForReading();
+        }
     }
 
     /** Get a term by the given id */
     public String getTermByID(Integer id) {
-        return id2term.get(id);
+        lockForReading();
+        try {
+            return id2term.get(id);
+        }
+        finally {
+            unlockForReading();
+        }
+    }
+
+    /** Number of terms (the term ids are 0 ... getTermCount()-1) */
+    public int getTermCount() {
+        lockForReading();
+        try {
+            return lastTermID + 1;
+        }
+        finally {
+            unlockForReading();
+        }
+    }
+
+
+    /**
+     *  Writes the index in a binary file: the header, the offsets of the
+     *  terms (in id order) in the term blob, the offsets of the k-grams in
+     *  the k-gram blob and of their postings, the postings (sorted term
+     *  ids), the term blob and the k-gram blob. The file is written aside
+     *  and then renamed.
+     */
+    public void write(String fileName) throws IOException {
+    	lockForReading();
+    	try {
+    		writeLocked(fileName);
+    	}
+    	finally {
+    		unlockForReading();
+    	}
+    }
+
+    private void writeLocked(String fileName) throws IOException {
+    	int n = lastTermID + 1;
+    	byte[][] terms = new byte[n][];
+    	for(int id = 0; id < n; id++)
+    		terms[id] = id2term.get(id).getBytes(StandardCharsets.UTF_8);
+    	ArrayList<String> kgrams = new ArrayList<String>(useBitmaps ? bitmaps.keySet() : index.keySet());
+    	Collections.sort(kgrams);
+    	int g = kgrams.size();
+    	int[][] postings = new int[g][];
+    	byte[][] names = new byte[g][];
+    	for(int i = 0; i < g; i++) {
+    		postings[i] = useBitmaps ? bitmaps.get(kgrams.get(i)).toArray() : index.get(kgrams.get(i)).toArray();
+    		names[i] = kgrams.get(i).getBytes(StandardCharsets.UTF_8);
+    	}
+    	Tries all = n == 0 ? null : mergeTries();
+
+    	File tmp = new File(fileName + ".tmp");
+    	try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), BulkIndexWriter.BUFFER_SIZE))) {
+    		out.writeInt(MAGIC);
+    		out.writeInt(K);
+    		out.writeInt(n);
+    		out.writeInt(g);
+    		int offset = 0;
+    		for(int id = 0; id < n; id++) {
+    			out.writeInt(offset);
+    			offset += terms[id].length;
+    		}
+    		out.writeInt(offset);
+    		offset = 0;
+    		for(int i = 0; i < g; i++) {
+    			out.writeInt(offset);
+    			offset += names[i].length;
+    		}
+    		out.writeInt(offset);
+    		offset = 0;
+    		for(int i = 0; i < g; i++) {
+    			out.writeInt(offset);
+    			offset += postings[i].length;
+    		}
+    		out.writeInt(offset);
+    		for(int[] ids : postings) {
+    			for(int id : ids)
+    				out.writeInt(id);
+    		}
+    		if(all != null) {
+    			all.prefix[0].write(out);
+    			all.suffix[0].write(out);
+    		}
+    		for(byte[] term : terms)
+    			out.write(term);
+    		for(byte[] name : names)
+    			out.write(name);
+    	}
+    	Files.move(tmp.toPath(), new File(fileName).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+
+    /**
+     *  Maps a file written by <code>write</code>, to be loaded on first use
+     *  of the index: opening takes the same time whatever the size of the
+     *  index. To be called before terms are inserted.
+     */
+    public void open(String fileName) throws IOException {
+    	lock.writeLock().lock();
+    	try (RandomAccessFile raf = new RandomAccessFile(fileName, "r")) {
+    		if(raf.length() > Integer.MAX_VALUE)
+    			throw new IOException("The k-gram index " + fileName + " is too large to be mapped");
+    		MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+    		if(map.limit() < HEADER_LEN || map.getInt(0) != MAGIC)
+    			throw new IOException("The k-gram index " + fileName + " is not in the binary format");
+    		if(map.getInt(Integer.BYTES) != K)
+    			throw new IOException("The k-gram index " + fileName + " has " + map.getInt(Integer.BYTES) + "-grams instead of " + K + "-grams");
+    		file = map;
+    	}
+    	finally {
+    		lock.writeLock().unlock();
+    	}
+    }
+
+
+    /**
+     *  Reads the opened file into the maps, if it is not loaded yet. The
+     *  postings are copied in bulk from the mapped file.
+     */
+    private void load() {
+    	if(file == null)
+    		return;
+    	lock.writeLock().lock();
+    	try {
+    		ByteBuffer buf = file;
+    		if(buf == null)
+    			return;
+    		int n = buf.getInt(2 * Integer.BYTES);
+    		int g = buf.getInt(3 * Integer.BYTES);
+    		int termOffsets = HEADER_LEN;
+    		int nameOffsets = termOffsets + (n + 1) * Integer.BYTES;
+    		int postingOffsets = nameOffsets + (g + 1) * Integer.BYTES;
+    		int postingsPos = postingOffsets + (g + 1) * Integer.BYTES;
+    		int prefixTriePos = postingsPos + buf.getInt(postingOffsets + g * Integer.BYTES) * Integer.BYTES;
+    		int suffixTriePos = n == 0 ? prefixTriePos : trieEnd(buf, prefixTriePos);
+    		int termBlob = n == 0 ? prefixTriePos : trieEnd(buf, suffixTriePos);
+    		int nameBlob = termBlob + buf.getInt(termOffsets + n * Integer.BYTES);
+
+    		String[] terms = new String[n];
+    		for(int id = 0; id < n; id++) {
+    			String term = readString(buf, termBlob, termOffsets, id);
+    			term2id.put(term, id);
+    			id2term.put(id, term);
+    			terms[id] = term;
+    		}
+    		lastTermID = n - 1;
+    		if(n > 0) {
+    			TermTrie prefix = TermTrie.read(buf.duplicate().position(prefixTriePos).asIntBuffer(), terms, false);
+    			TermTrie suffix = TermTrie.read(buf.duplicate().position(suffixTriePos).asIntBuffer(), terms, true);
+    			tries = new Tries(new TermTrie[] { prefix }, new TermTrie[] { suffix }, lastTermID);
+    		}
+    		int[] all = new int[buf.getInt(postingOffsets + g * Integer.BYTES)];
+    		buf.duplicate().position(postingsPos).asIntBuffer().get(all);
+    		for(int i = 0; i < g; i++) {
+    			String kgram = readString(buf, nameBlob, nameOffsets, i);
+    			int from = buf.getInt(postingOffsets + i * Integer.BYTES);
+    			int to = buf.getInt(postingOffsets + (i + 1) * Integer.BYTES);
+    			if(useBitmaps) {
+    				RoaringBitmap set = new RoaringBitmap();
+    				for(int j = from; j < to; j++)
+    					set.add(all[j]);
+    				bitmaps.put(kgram, set);
+    			} else {
+    				index.put(kgram, new KGramPostings(Arrays.copyOfRange(all, from, to), to - from));
+    			}
+    		}
+    		file = null;
+    	}
+    	finally {
+    		lock.writeLock().unlock();
+    	}
+    }
+
+    /** Position after a trie written at <code>pos</code>: its number of terms and of nodes, then 1 and 5 ints for each. */
+    private static int trieEnd(ByteBuffer buf, int pos) {
+    	return pos + (2 + buf.getInt(pos) + 5 * buf.getInt(pos + Integer.BYTES)) * Integer.BYTES;
+    }
+
+    private static String readString(ByteBuffer buf, int blob, int offsets, int i) {
+    	int start = buf.getInt(offsets + i * Integer.BYTES);
+    	int end = buf.getInt(offsets + (i + 1) * Integer.BYTES);
+    	byte[] bytes = new byte[end - start];
+    	buf.get(blob + start, bytes);
+    	return new String(bytes, StandardCharsets.UTF_8);
     }
 
     private static HashMap<String,String> decodeArgs( String[] args ) {
@@ -174,19 +735,13 @@ public class KGramIndex {
         }
         
         String[] kgrams = args.get("kgram").split(" ");
-        List<KGramPostingsEntry> postings = null;
         for (String kgram : kgrams) {
             if (kgram.length() != k) {
                 System.err.println("Cannot search k-gram index: " + kgram.length() + "-gram provided instead of " + k + "-gram");
                 System.exit(1);
             }
-
-            if (postings == null) {
-                postings = kgIndex.getPostings(kgram);
-            } else {
-                postings = kgIndex.intersect(postings, kgIndex.getPostings(kgram));
-            }
         }
+        KGramPostings postings = kgIndex.intersect(Arrays.asList(kgrams));
         if (postings == null) {
             System.err.println("Found 0 posting(s)");
         } else {
@@ -197,7 +752,7 @@ public class KGramIndex {
                 resNum = 10;
             }
             for (int i = 0; i < resNum; i++) {
-                System.err.println(kgIndex.getTermByID(postings.get(i).tokenID));
+                System.err.println(kgIndex.getTermByID(postings.get(i)));
             }
         }
     }
@@ -0,0 +1,159 @@
+package ir;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ *  The IDs of the terms containing a k-gram, in increasing order, in an int array.
+ *
+ *  The term IDs are handed out in increasing order, so a new one is
+ *  appended. Two lists are intersected by a linear merge, or by galloping
+ *  through the longer one when their sizes are far apart.
+ */
+public class KGramPostings {
+
+    /** Above this ratio of sizes, the shorter list gallops through the longer one. */
+    static final int GALLOP_RATIO = 8;
+
+    /** The term IDs, in increasing order. */
+    int[] ids;
+
+    /** Number of term IDs. */
+    int size = 0;
+
+
+    public KGramPostings() {
+    	ids = new int[4];
+    }
+
+    /** A list on the first <code>size</code> IDs of <code>ids</code>, which are not copied. */
+    KGramPostings( int[] ids, int size ) {
+    	this.ids = ids;
+    	this.size = size;
+    }
+
+    /** Number of term IDs. */
+    public int size() {
+    	return size;
+    }
+
+    /** The ith term ID. */
+    public int get( int i ) {
+    	return ids[i];
+    }
+
+    /** Appends a term ID, unless it is the last one already. */
+    public void add( int id ) {
+    	if(size > 0 && ids[size-1] == id)
+    		return;
+    	if(size == ids.length)
+    		ids = Arrays.copyOf(ids, 2 * size);
+    	ids[size++] = id;
+    }
+
+    /** Appends the term IDs of another list, which are all larger than these. */
+    public void addAll( KGramPostings other ) {
+    	if(size + other.size > ids.length)
+    		ids = Arrays.copyOf(ids, Math.max(size + other.size, 2 * size));
+    	System.arraycopy(other.ids, 0, ids, size, other.size);
+    	size += other.size;
+    }
+
+    /** Whether the list holds a term ID. */
+    public boolean contains( int id ) {
+    	return Arrays.binarySearch(ids, 0, size, id) >= 0;
+    }
+
+    /** The term IDs, in a new array. */
+    public int[] toArray() {
+    	return Arrays.copyOf(ids, size);
+    }
+
+
+    /**
+     *  Returns the index of the first ID at or after index <code>from</code>
+     *  which is at least <code>id</code>, or size() if there is none. The
+     *  target is bracketed by galloping and then found by binary search.
+     */
+    int advance( int from, int id ) {
+    	if(from >= size || ids[from] >= id)
+    		return from;
+    	int step = 1;
+    	int lo = from, hi = from + 1;
+    	while(hi < size && ids[hi] < id) {
+    		lo = hi;
+    		step <<= 1;
+    		hi = from + step;
+    	}
+    	if(hi > size)
+    		hi = size;
+    	// ids[lo] < id, and id <= ids[hi] if hi < size
+    	while(lo + 1 < hi) {
+    		int mid = (lo + hi) >>> 1;
+    		if(ids[mid] < id)
+    			lo = mid;
+    		else
+    			hi = mid;
+    	}
+    	return hi;
+    }
+
+
+    /**
+     *  Intersects two lists.
+     */
+    public static KGramPostings intersect( KGramPostings a, KGramPostings b ) {
+    	if(a.size > b.size) {
+    		KGramPostings t = a;
+    		a = b;
+    		b = t;
+    	}
+    	int[] result = new int[a.size];
+    	int n = 0;
+    	if((long) a.size * GALLOP_RATIO < b.size) {
+    		int j = 0;
+    		for(int i = 0; i < a.size && j < b.size; i++) {
+    			j = b.advance(j, a.ids[i]);
+    			if(j < b.size && b.ids[j] == a.ids[i])
+    				result[n++] = a.ids[i];
+    		}
+    	} else {
+    		int i = 0, j = 0;
+    		while(i < a.size && j < b.size) {
+    			if(a.ids[i] < b.ids[j])
+    				i++;
+    			else if(a.ids[i] > b.ids[j])
+    				j++;
+    			else {
+    				result[n++] = a.ids[i];
+    				i++;
+    				j++;
+    			}
+    		}
+    	}
+    	return new KGramPostings(result, n);
+    }
+
+
+    /**
+     *  Intersects several lists, starting with the shortest ones: the
+     *  intermediate results only shrink, and the longest lists are only
+     *  galloped through.
+     */
+    public static KGramPostings intersect( List<KGramPostings> lists ) {
+    	if(lists.isEmpty())
+    		return new KGramPostings();
+    	KGramPostings[] sorted = lists.toArray(new KGramPostings[lists.size()]);
+    	Arrays.sort(sorted, new Comparator<KGramPostings>() {
+    		public int compare( KGramPostings a, KGramPostings b ) {
+    			return Integer.compare(a.size, b.size);
+    		}
+    	});
+    	KGramPostings result = sorted[0];
+    	for(int i = 1; i < sorted.length && result.size > 0; i++) {
+    		result = intersect(result, sorted[i]);
+    	}
+    	return result;
+    }
+}
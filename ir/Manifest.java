@@ -0,0 +1,114 @@
+package ir;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ *  Records, for every indexed file, its docID and the modification time,
+ *  size and content hash it had when it was indexed. An incremental update
+ *  compares the files with the manifest: a file whose time and size are
+ *  unchanged is skipped without being read, and one whose content hash is
+ *  unchanged is not indexed again either.
+ */
+public class Manifest {
+
+    /**
+     *  What is known of one indexed file.
+     */
+    public static class Entry {
+    	public int docID;
+    	public long modified;
+    	public long size;
+    	public long hash;
+
+    	public Entry( int docID, long modified, long size, long hash ) {
+    		this.docID = docID;
+    		this.modified = modified;
+    		this.size = size;
+    		this.hash = hash;
+    	}
+
+    	/** Whether the file has the modification time and size recorded. */
+    	public boolean sameStat( File f ) {
+    		return f.lastModified() == modified && f.length() == size;
+    	}
+    }
+
+
+    /** The entries, by file path. */
+    public HashMap<String,Entry> entries = new HashMap<String,Entry>();
+
+
+    /**
+     *  Records a file under its docID, hashing its content.
+     */
+    public Entry record( File f, int docID ) throws IOException {
+    	Entry entry = new Entry(docID, f.lastModified(), f.length(), hash(f));
+    	entries.put(f.getPath(), entry);
+    	return entry;
+    }
+
+
+    /**
+     *  Returns a hash (CRC-32) of the content of a file.
+     */
+    public static long hash( File f ) throws IOException {
+    	CRC32 crc = new CRC32();
+    	byte[] buf = new byte[1 << 16];
+    	try (InputStream in = new BufferedInputStream(new FileInputStream(f), buf.length)) {
+    		int n;
+    		while((n = in.read(buf)) > 0) {
+    			crc.update(buf, 0, n);
+    		}
+    	}
+    	return crc.getValue();
+    }
+
+
+    /**
+     *  Writes the manifest, one file per line: docID;modified;size;hash;path.
+     */
+    public void write( String fileName ) throws IOException {
+    	try (OutputStream fout = new BufferedOutputStream(new FileOutputStream(fileName))) {
+    		StringBuilder sb = new StringBuilder();
+    		for(Map.Entry<String,Entry> entry : entries.entrySet()) {
+    			Entry e = entry.getValue();
+    			sb.setLength(0);
+    			sb.append(e.docID).append(';').append(e.modified).append(';').append(e.size).append(';')
+    				.append(e.hash).append(';').append(entry.getKey()).append('\n');
+    			fout.write(sb.toString().getBytes());
+    		}
+    	}
+    }
+
+
+    /**
+     *  Reads a manifest written by <code>write</code>; empty if there is none.
+     */
+    public static Manifest read( String fileName ) throws IOException {
+    	Manifest manifest = new Manifest();
+    	try (BufferedReader br = new BufferedReader(new FileReader(fileName))) {
+    		String line;
+    		while((line = br.readLine()) != null) {
+    			String[] data = line.split(";", 5);
+    			manifest.entries.put(data[4], new Entry(Integer.parseInt(data[0]), Long.parseLong(data[1]),
+    					Long.parseLong(data[2]), Long.parseLong(data[3])));
+    		}
+    	}
+    	catch ( FileNotFoundException e ) {
+    	}
+    	return manifest;
+    }
+}
@@ -212,7 +212,6 @@ public class PageRankSparse {
     public void writePageRank(int[] idx, double[] a) {
     	
     	BufferedReader titlesReader = null;
-    	BufferedReader docInfoReader = null;
     	StringTokenizer tokenizer = null;
     	RandomAccessFile pr = null;
     	
@@ -220,13 +219,15 @@ public class PageRankSparse {
         	Files.deleteIfExists(Paths.get("./PageRankList/PageRank.txt"));
             pr = new RandomAccessFile( "./PageRankList/PageRank.txt", "rw" );
             File titles = new File("davisWikiArticleTitles.txt");
-            File docInfo = new File("./index/docInfo");
+            // docIDs of the indexed documents, by name
+            HashMap<String,Integer> docIDs = new HashMap<String,Integer>();
+            for(Map.Entry<Integer,String> entry : Index.docNames.entrySet()) {
+            	docIDs.put(entry.getValue(), entry.getKey());
+            }
             String line1 = null;
-            String line2 = null;
             String docid1 = null;
             String docid2 = null;
             String docname1 = null;
-            String docname2 = null;
             
             
             titlesReader = new BufferedReader(new FileReader(titles));
@@ -237,19 +238,10 @@ public class PageRankSparse {
                 docid1 = tokenizer.nextToken();
                 docname1 = tokenizer.nextToken();
         		
-                docInfoReader = new BufferedReader(new FileReader(docInfo));
-                boolean found = false;
-                while((line2 = docInfoReader.readLine()) != null) {
-                	tokenizer = new StringTokenizer(line2, ";");
-                	docid2 = tokenizer.nextToken();
-                    docname2 = tokenizer.nextToken();
-                    
-                    if(docname2.equals("./davisWiki/" + docname1)) {
-                    	found = true;
-                    	break;
-                    }
-                }
-                docInfoReader.close();
+                Integer docID = docIDs.get("./davisWiki/" + docname1);
+                boolean found = docID != null;
+                if(found)
+                	docid2 = docID.toString();
                 
                 if(found) {
                 	found = false;
@@ -0,0 +1,74 @@
+package ir;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ *  Scores every matching term with the PageRank of the document.
+ */
+public class PagerankScorer implements Scorer {
+
+    /** PageRank scores by document name (may be null). */
+    HashMap<String, Double> pagerank;
+
+    Index index;
+
+    /**
+     *  PageRank score by docID, for the docIDs below <code>lookedUp</code>, the
+     *  largest one, and the size of the map they were looked up in.
+     */
+    private double[] docPagerank = new double[0];
+    private int lookedUp = 0;
+    private double maxPagerank = 0;
+    private int pagerankSize = -1;
+
+    public PagerankScorer( Index index, HashMap<String, Double> pagerank ) {
+    	this.index = index;
+    	this.pagerank = pagerank;
+    }
+
+    /**
+     *  Looks up the PageRank score of every document once, so that scoring
+     *  does not go through the document names. The documents added to the
+     *  collection since the last call are looked up, and all of them again
+     *  when the map has changed.
+     */
+    private void lookUp( ScoringStatistics stats ) {
+    	if(pagerank == null)
+    		return;
+    	if(pagerank.size() != pagerankSize) {
+    		// running queries keep the array of the previous map
+    		docPagerank = new double[0];
+    		lookedUp = 0;
+    		maxPagerank = 0;
+    		pagerankSize = pagerank.size();
+    	}
+    	int docs = stats.docIDBound();
+    	if(docs <= lookedUp)
+    		return;
+    	// only the entries past lookedUp are written, which running queries do not read
+    	if(docs > docPagerank.length)
+    		docPagerank = Arrays.copyOf(docPagerank, Math.max(docs, 2 * docPagerank.length));
+    	for(int doc = lookedUp; doc < docs; doc++) {
+    		String name = Index.docNames.get(doc);
+    		Double pr = name == null ? null : pagerank.get(name);
+    		docPagerank[doc] = pr == null ? 0 : pr;
+    		maxPagerank = Math.max(maxPagerank, docPagerank[doc]);
+    	}
+    	lookedUp = docs;
+    }
+
+    public synchronized TermScorer forTerm( ScoringStatistics stats, double weight, int df, int termID ) {
+    	lookUp(stats);
+    	final double[] scores = docPagerank;
+    	final double max = maxPagerank;
+    	return new TermScorer() {
+    		public double score( int tf, int doc ) {
+    			return doc < scores.length ? scores[doc] : 0;
+    		}
+    		public double upperBound() {
+    			return max;
+    		}
+    	};
+    }
+}
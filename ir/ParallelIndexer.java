@@ -0,0 +1,258 @@
+package ir;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+
+/**
+ *   Indexes a directory structure with several tokenizer threads.
+ *
+ *   The calling thread walks the directories in the same order as Indexer,
+ *   so every file gets the same docID, and hands the files to the workers
+ *   in batches of consecutive docIDs. Each worker tokenizes a batch into a
+ *   partial inverted index of its own. As soon as the batches before it are
+ *   in, a batch is appended to the index in bulk (Index.insertAll): the
+ *   index gets the documents in docID order, as from the sequential Indexer,
+ *   and a scalable index flushes its runs on its memory budget meanwhile.
+ *   The new terms of the batch then go to the k-gram index in order of
+ *   first occurrence, which gives them the same term IDs as well. Only a
+ *   few batches per worker are in memory at a time.
+ */
+public class ParallelIndexer extends Indexer {
+
+	/** Number of files per batch. */
+	static final int BATCH_SIZE = 64;
+
+	/** Number of batches being tokenized or waiting to be appended, per worker. */
+	static final int BATCHES_PER_THREAD = 2;
+
+	/** Number of tokenizer threads. */
+	int threads;
+
+	/** The batch the walk is filling, and the numbers of batches handed out and appended. */
+	Batch batch = null;
+	int submitted = 0;
+	int appended = 0;
+
+	/** The batches tokenized by the workers and not appended yet, by number. */
+	HashMap<Integer,Batch> done = new HashMap<Integer,Batch>();
+
+
+	/**
+	 *  Files with consecutive docIDs, from <code>firstDocID</code> on, and
+	 *  the partial index of their postings, or the error tokenizing them
+	 *  failed with. A batch with a negative number stops a worker.
+	 */
+	static class Batch {
+		int number;
+		int firstDocID;
+		ArrayList<File> files = new ArrayList<File>();
+		HashedIndex partial = new HashedIndex();
+		HashMap<Integer,Integer> lengths = new HashMap<Integer,Integer>();
+		Throwable error = null;
+
+		Batch( int number, int firstDocID ) {
+			this.number = number;
+			this.firstDocID = firstDocID;
+		}
+	}
+
+
+	/**
+	 *  A tokenizer thread.
+	 */
+	class Worker extends Thread {
+		BlockingQueue<Batch> queue;
+
+		Worker( BlockingQueue<Batch> queue ) {
+			this.queue = queue;
+		}
+
+		public void run() {
+			try {
+				Batch batch;
+				while ( (batch = queue.take()).number >= 0 ) {
+					// the batch is posted whatever happens, or the walk would wait for it forever
+					try {
+						tokenize( batch );
+					}
+					catch ( Throwable e ) {
+						batch.error = e;
+					}
+					synchronized ( done ) {
+						done.put( batch.number, batch );
+						done.notifyAll();
+					}
+				}
+			}
+			catch ( InterruptedException e ) {
+			}
+		}
+
+		void tokenize( Batch batch ) {
+			for ( int i=0; i<batch.files.size(); i++ ) {
+				int docID = batch.firstDocID + i;
+				try {
+					Reader reader = openReader( batch.files.get( i ));
+					Tokenizer tok = new Tokenizer( reader, true, false, true, patterns_file );
+					int offset = 0;
+					while ( tok.hasMoreTokens() ) {
+						batch.partial.insert( tok.nextToken(), docID, offset++ );
+					}
+					batch.lengths.put( docID, offset );
+					reader.close();
+				}
+				catch ( IOException e ) {
+					System.err.println( "Warning: IOException during indexing." );
+				}
+			}
+		}
+	}
+
+
+	/* ----------------------------------------------- */
+
+
+	/** Constructor */
+	public ParallelIndexer( Index index, String patterns_file, KGramIndex kgIndex, int threads ) {
+		super( index, patterns_file, kgIndex );
+		this.threads = threads;
+	}
+
+
+	/**
+	 *  Tokenizes and indexes the file @code{f} and, if <code>f</code> is a
+	 *  directory, all its files and subdirectories, using the worker threads.
+	 *  If a worker fails, its error is thrown here once the batches before
+	 *  its own are appended, and the other workers are stopped.
+	 */
+	public void processFiles( File f ) {
+		BlockingQueue<Batch> queue = new LinkedBlockingQueue<Batch>();
+		Worker[] workers = new Worker[threads];
+		for ( int i=0; i<threads; i++ ) {
+			workers[i] = new Worker( queue );
+			workers[i].start();
+		}
+		batch = null;
+		submitted = appended = 0;
+		done.clear();
+		try {
+			walk( f, queue );
+			if ( batch != null ) {
+				submit( queue );
+			}
+			while ( appended < submitted ) {
+				appendNext();
+			}
+			for ( int i=0; i<threads; i++ ) {
+				queue.put( new Batch( -1, -1 ));
+			}
+			for ( int i=0; i<threads; i++ ) {
+				workers[i].join();
+			}
+		}
+		catch ( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+		}
+		finally {
+			// the workers are done, unless the walk was cut short or a batch failed
+			queue.clear();
+			for ( Worker w : workers ) {
+				w.interrupt();
+			}
+		}
+	}
+
+
+	/**
+	 *  Registers the files in the order of Indexer.processFiles and puts them in batches.
+	 */
+	private void walk( File f, BlockingQueue<Batch> queue ) throws InterruptedException {
+		// do not try to index fs that cannot be read
+		if ( f.canRead() ) {
+			if ( f.isDirectory() ) {
+				String[] fs = f.list();
+				// an IO error could occur
+				if ( fs != null ) {
+					for ( int i=0; i<fs.length; i++ ) {
+						walk( new File( f, fs[i] ), queue );
+					}
+				}
+			} else {
+				int docID = generateDocID();
+				if ( docID%1000 == 0 ) System.err.println( "Indexed " + docID + " files" );
+				Index.docNames.put( docID, f.getPath() );
+				if ( batch == null ) {
+					batch = new Batch( submitted, docID );
+				}
+				batch.files.add( f );
+				if ( batch.files.size() == BATCH_SIZE ) {
+					submit( queue );
+				}
+			}
+		}
+	}
+
+
+	/**
+	 *  Hands the current batch to the workers, once the batches in memory
+	 *  are few enough; the next ones are appended meanwhile.
+	 */
+	private void submit( BlockingQueue<Batch> queue ) throws InterruptedException {
+		while ( submitted - appended >= BATCHES_PER_THREAD * threads ) {
+			appendNext();
+		}
+		queue.put( batch );
+		submitted++;
+		batch = null;
+	}
+
+
+	/**
+	 *  Waits for the next batch in docID order to be tokenized, and appends
+	 *  it, or throws the error its worker failed with.
+	 */
+	private void appendNext() throws InterruptedException {
+		Batch next;
+		synchronized ( done ) {
+			while ( (next = done.remove( appended )) == null ) {
+				done.wait();
+			}
+		}
+		if ( next.error != null ) {
+			throw new RuntimeException( "Indexing failed in the files from " + next.files.get( 0 ), next.error );
+		}
+		append( next );
+		appended++;
+	}
+
+
+	/**
+	 *  Appends the postings of a batch to the index, and its new terms to the k-gram index.
+	 */
+	private void append( Batch batch ) {
+		final HashMap<String,PostingsList> lists = batch.partial.index;
+
+		// Term IDs are given in order of first occurrence, as when indexing sequentially
+		ArrayList<String> terms = new ArrayList<String>();
+		for ( String term : lists.keySet() ) {
+			if ( kgIndex.getIDByTerm( term ) == null ) {
+				terms.add( term );
+			}
+		}
+		Collections.sort( terms, new Comparator<String>() {
+			public int compare( String t1, String t2 ) {
+				PostingsList l1 = lists.get( t1 ), l2 = lists.get( t2 );
+				if ( l1.getDocID( 0 ) != l2.getDocID( 0 ))
+					return Integer.compare( l1.getDocID( 0 ), l2.getDocID( 0 ));
+				return Integer.compare( l1.getOffset( 0, 0 ), l2.getOffset( 0, 0 ));
+			}
+		});
+
+		Index.docLengths.putAll( batch.lengths );
+		index.insertAll( lists );
+		kgIndex.insertAll( terms, threads );
+	}
+}
@@ -10,6 +10,8 @@ package ir;
 import java.io.*;
 import java.util.*;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.*;
 
 
@@ -41,6 +43,15 @@ public class PersistentHashedIndex implements Index {
     /** The doc info file name */
     public static final String DOCINFO_FNAME = "docInfo";
 
+    /** The scoring statistics file name */
+    public static final String STATS_FNAME = "stats";
+
+    /** The sorted dictionary file name */
+    public static final String SORTED_DICTIONARY_FNAME = "sortedDictionary";
+
+    /** The k-gram index file name */
+    public static final String KGRAM_FNAME = "kgrams";
+
     /** The dictionary hash table on disk can fit this many entries. */
     //public static final long TABLESIZE = 611953L;  // 50,000th prime number
     public static final long TABLESIZE = 3500017L;
@@ -48,28 +59,61 @@ public class PersistentHashedIndex implements Index {
     /** The dictionary hash table is stored in this file. */
     RandomAccessFile dictionaryFile;
 
-    /** The data (the PostingsLists) are stored in this file. */
+    /** The data (the PostingsLists) are stored in this file, in the PostingsCodec format. */
     RandomAccessFile dataFile;
 
+    /** The terms of the dictionary entries are stored in this file. */
+    RandomAccessFile termsFile;
+
     /** Pointer to the first free memory cell in the data file. */
-    long free = 0L;
+    long free = PostingsCodec.HEADER_LEN;
+
+    /** Pointer to the first free memory cell in the terms file. */
+    long freeTerm = 0L;
+
+    /** Encodes the postings written to the data file. */
+    PostingsCodec codec = new PostingsCodec();
 
     /** The cache as a main-memory hash map. */
     public HashMap<String,PostingsList> index = new HashMap<String,PostingsList>();
     
-    public int entryLen = Byte.BYTES + Long.BYTES + Integer.BYTES;
+    /** A slot: the header byte, the fingerprint, the term pointer, the data pointer and the length. */
+    public int entryLen = Byte.BYTES + 2*Integer.BYTES + Long.BYTES + Integer.BYTES;
+
+    /** Statistics for ranked retrieval, read from disk or computed by writeIndex. */
+    ScoringStatistics stats = null;
+
+    /** The dictionary and data files mapped in memory, when the index is opened read-only. */
+    MappedByteBuffer dictionaryMap = null;
+    MappedByteBuffer dataMap = null;
+    MappedByteBuffer termsMap = null;
+
+    /** Whether writeIndex commits a sorted dictionary instead of the hash table. */
+    public boolean useSortedDictionary = false;
+
+    /** The sorted dictionary of the committed index, or null if it uses the hash table. */
+    SortedDictionary sortedDictionary = null;
 
 
     // ===================================================================
 
     /**
      *   A helper class representing one entry in the dictionary hashtable.
+     *
+     *   A slot holds the fingerprint of the term and pointers to the term (in
+     *   the terms file) and to its postings (in the data file), so that probing
+     *   compares fixed-size keys and reads neither the term nor the postings.
+     *   The term is only read, into <code>token</code>, when the fingerprints match.
+     *   The fingerprint and the term pointer take 4 bytes each (the terms file
+     *   is limited to 2GB), the data pointer 8.
      */ 
     public class Entry {
 		//
 		//  YOUR CODE HERE
 		//
     	int correctHeader = 75;
+    	int fingerprint;
+    	int ptrToTerm;
     	long ptrToData;
     	int len;
     	String token;
@@ -79,20 +123,21 @@ public class PersistentHashedIndex implements Index {
     	public byte[] toByte() {
     		ByteBuffer buffer = ByteBuffer.allocate(entryLen);
     		buffer.put(head);
-    	    buffer.putLong(Byte.BYTES, ptrToData);
-    	    buffer.putInt(Byte.BYTES+Long.BYTES, len);
+    	    buffer.putInt(Byte.BYTES, fingerprint);
+    	    buffer.putInt(Byte.BYTES+Integer.BYTES, ptrToTerm);
+    	    buffer.putLong(Byte.BYTES+2*Integer.BYTES, ptrToData);
+    	    buffer.putInt(Byte.BYTES+2*Integer.BYTES+Long.BYTES, len);
     	    return buffer.array();
     	}
     	
     	public void toEntry(byte[] b) {
-    		
-    		ByteBuffer buffer = ByteBuffer.wrap(b, 0, Byte.BYTES);
+    		ByteBuffer buffer = ByteBuffer.wrap(b);
     		this.head = buffer.get();
     		if(this.head != (byte) correctHeader)
     			this.valid = false;
-    		buffer = ByteBuffer.wrap(b, Byte.BYTES, Long.BYTES);
+    		this.fingerprint = buffer.getInt();
+    		this.ptrToTerm = buffer.getInt();
     		this.ptrToData = buffer.getLong();
-    		buffer = ByteBuffer.wrap(b, Byte.BYTES+Long.BYTES, Integer.BYTES);
     		this.len = buffer.getInt();
     	}
     }
@@ -110,6 +155,11 @@ public class PersistentHashedIndex implements Index {
         try {
             dictionaryFile = new RandomAccessFile( INDEXDIR + "/" + DICTIONARY_FNAME, "rw" );
             dataFile = new RandomAccessFile( INDEXDIR + "/" + DATA_FNAME, "rw" );
+            termsFile = new RandomAccessFile( INDEXDIR + "/" + TERMS_FNAME, "rw" );
+            free = PostingsCodec.checkHeader( dataFile );
+            if ( new File( INDEXDIR + "/" + SORTED_DICTIONARY_FNAME ).exists() ) {
+                sortedDictionary = SortedDictionary.open( INDEXDIR + "/" + SORTED_DICTIONARY_FNAME );
+            }
         }
         catch ( IOException e ) {
             e.printStackTrace();
@@ -129,12 +179,11 @@ public class PersistentHashedIndex implements Index {
      *
      *  @return The number of bytes written.
      */ 
-    int writeData( String dataString, long ptr , RandomAccessFile dataFile) {
+    int writeData( byte[] data, int len, long ptr , RandomAccessFile dataFile) {
         try {
             dataFile.seek( ptr ); 
-            byte[] data = dataString.getBytes();
-            dataFile.write( data );
-            return data.length;
+            dataFile.write( data, 0, len );
+            return len;
         }
         catch ( IOException e ) {
             e.printStackTrace();
@@ -146,12 +195,12 @@ public class PersistentHashedIndex implements Index {
     /**
      *  Reads data from the data file
      */ 
-    String readData( long ptr, int size , RandomAccessFile dataFile) {
+    byte[] readData( long ptr, int size , RandomAccessFile dataFile) {
         try {
             dataFile.seek( ptr );
             byte[] data = new byte[size];
             dataFile.readFully( data );
-            return new String(data);
+            return data;
         }
         catch ( IOException e ) {
             e.printStackTrace();
@@ -186,11 +235,12 @@ public class PersistentHashedIndex implements Index {
     }
 
     /**
-     *  Reads an entry from the dictionary file.
+     *  Reads an entry from the dictionary file. The term of the entry is not read.
      *
      *  @param ptr The place in the dictionary file where to start reading.
+     *  @return null if the slot is empty.
      */
-    Entry readEntry( long ptr, RandomAccessFile dictionaryFile, RandomAccessFile dataFile ) {   
+    Entry readEntry( long ptr, RandomAccessFile dictionaryFile ) {   
 		//
 		//  REPLACE THE STATEMENT BELOW WITH YOUR CODE 
 		//
@@ -205,18 +255,6 @@ public class PersistentHashedIndex implements Index {
             
             if(!entry.valid)
             	return null;
-            
-            String postings = readData( entry.ptrToData, entry.len , dataFile);
-            
-            if(postings == null) {
-            	return null;
-            }
-            
-            Scanner s = new Scanner(postings);
-            entry.token = s.next();
-            s.close();
-            
-            
         }
         catch ( IOException e ) {
             //e.printStackTrace();
@@ -226,42 +264,107 @@ public class PersistentHashedIndex implements Index {
     }
 
 
+    /**
+     *  Returns the term of an entry, reading it from the terms file the first time.
+     */
+    String readTerm( Entry entry, RandomAccessFile termsFile ) {
+    	if(entry.token == null) {
+    		try {
+    			entry.token = PostingsCodec.readToken( termsFile, entry.ptrToTerm );
+    		}
+    		catch ( IOException e ) {
+    			e.printStackTrace();
+    		}
+    	}
+    	return entry.token;
+    }
+
+
+    /**
+     *  Writes the term of an entry to the terms file at a specified place, and
+     *  sets the fingerprint and the term pointer of the entry.
+     *
+     *  @return The number of bytes written.
+     */
+    int writeTerm( Entry entry, String token, long ptr, RandomAccessFile termsFile ) {
+    	entry.token = token;
+    	if(ptr > Integer.MAX_VALUE)
+    		throw new IllegalStateException("The terms file is larger than 2GB");
+    	entry.fingerprint = fingerprint( token );
+    	entry.ptrToTerm = (int) ptr;
+    	int len = codec.encodeToken( token );
+    	return writeData( codec.bytes, len, ptr, termsFile );
+    }
+
+
+    /**
+     *  Looks a token up in the dictionary. The slots are compared by fingerprint,
+     *  and the term is read from the terms file only to confirm a match.
+     *
+     *  @return The entry of the token, or null if the token is not in the dictionary.
+     */
+    Entry findEntry( String token, RandomAccessFile dictionaryFile, RandomAccessFile termsFile ) {
+    	int fp = fingerprint( token );
+    	long ptr = h( token, 0 );
+    	Entry entry;
+    	for(long coll = 0; coll < TABLESIZE; coll++) {
+    		entry = readEntry( ptr, dictionaryFile );
+    		if(entry == null)
+    			return null;
+    		if(entry.fingerprint == fp && token.equals(readTerm(entry, termsFile)))
+    			return entry;
+    		ptr = (ptr + entryLen) % (TABLESIZE * entryLen);
+    	}
+    	return null;
+    }
+
+
+    /**
+     *  32-bit FNV-1a fingerprint of a token, stored in its dictionary slot.
+     */
+    public static int fingerprint( String token ) {
+    	int fp = 0x811c9dc5;
+    	for(int i = 0; i < token.length(); i++) {
+    		fp ^= token.charAt(i);
+    		fp *= 0x01000193;
+    	}
+    	return fp;
+    }
+
+
     // ==================================================================
 
     /**
-     *  Writes the document names and document lengths to file.
+     *  Writes the document names and document lengths to file, in the
+     *  binary format of DocumentStore.
      *
      * @throws IOException  { exception_description }
      */
-    private void writeDocInfo() throws IOException {
-        FileOutputStream fout = new FileOutputStream( INDEXDIR + "/docInfo" );
-        for (Map.Entry<Integer,String> entry : docNames.entrySet()) {
-            Integer key = entry.getKey();
-            String docInfoEntry = key + ";" + entry.getValue() + ";" + docLengths.get(key) + "\n";
-            fout.write(docInfoEntry.getBytes());
-        }
-        fout.close();
+    protected void writeDocInfo() throws IOException {
+        documents.write( INDEXDIR + "/" + DOCINFO_FNAME );
     }
 
 
     /**
-     *  Reads the document names and document lengths from file, and
-     *  put them in the appropriate data structures.
+     *  Maps the document names and document lengths file. Nothing is read
+     *  until a document is looked up, so this takes constant time.
      *
      * @throws     IOException  { exception_description }
      */
     protected void readDocInfo() throws IOException {
-        File file = new File( INDEXDIR + "/docInfo" );
-        FileReader freader = new FileReader(file);
-        try (BufferedReader br = new BufferedReader(freader)) {
-            String line;
-            while ((line = br.readLine()) != null) {
-               String[] data = line.split(";");
-               docNames.put(new Integer(data[0]), data[1]);
-               docLengths.put(new Integer(data[0]), new Integer(data[2]));
-            }
-        }
-        freader.close();
+        documents.open( INDEXDIR + "/" + DOCINFO_FNAME );
+    }
+
+
+    /**
+     *  Empties the data and terms files before a new index is written in
+     *  them, and writes the header of the data file. The previous files may
+     *  be in an older format.
+     */
+    void truncateFiles() throws IOException {
+        free = PostingsCodec.writeHeader( dataFile );
+        termsFile.setLength( 0 );
+        freeTerm = 0;
     }
 
 
@@ -269,13 +372,12 @@ public class PersistentHashedIndex implements Index {
      *  Write the index to files.
      */
     public void writeIndex() {
-        int collisions = 0, len, coll;
-        String data;
-        long ptr;
-        Entry element = null;
+        int collisions = 0;
         try {
             // Write the 'docNames' and 'docLengths' hash maps to a file
             writeDocInfo();
+            stats = ScoringStatistics.build( index, docLengths );
+            stats.write( INDEXDIR + "/" + STATS_FNAME );
 
             // Write the dictionary and the postings list
            
@@ -283,30 +385,17 @@ public class PersistentHashedIndex implements Index {
 		    //  YOUR CODE HERE
 		    //
             
-            for (Map.Entry<String,PostingsList> entry : index.entrySet()) {
-            	
-            	data = PostingsToString(entry.getValue(), entry.getKey());
-            	
-            	len = writeData(data, free, dataFile);
-            	
-            	coll = 0;
-            	ptr = h(entry.getKey(), coll);
-            	
-            	element = new Entry();
-            	element.len = len;
-            	element.ptrToData = free;
-            	free += len;
-            	
-            	while(readEntry(ptr, dictionaryFile, dataFile) != null) {
-            		coll++;
-            		ptr = h(entry.getKey(), coll);
-            		collisions++;
-            	}
-            	
-            	writeEntry(element, ptr, dictionaryFile);
-            	
+            truncateFiles();
+            BulkIndexWriter writer = new BulkIndexWriter( this, dictionaryFile, dataFile, termsFile, free, freeTerm );
+            // a sorted dictionary takes the terms in order
+            Map<String,PostingsList> terms = useSortedDictionary ? new TreeMap<String,PostingsList>(index) : index;
+            for (Map.Entry<String,PostingsList> entry : terms.entrySet()) {
+            	writer.add( entry.getKey(), entry.getValue() );
             }
-            
+            writer.finish();
+            free = writer.free;
+            freeTerm = writer.freeTerm;
+            collisions = writer.collisions;
         }
         catch ( IOException e ) {
             e.printStackTrace();
@@ -330,77 +419,62 @@ public class PersistentHashedIndex implements Index {
     	return ptr*entryLen;
     }
     
-    public String PostingsToString(PostingsList list, String token) {
-    	
-    	StringBuffer data = new StringBuffer();
-    	data.append(token + " ");
-    	
-    	for(int i = 0; i < list.size(); i++) {
-    		data.append(list.get(i).docID + ":");
-    		for(int j = 0; j < list.get(i).offset.size()-1; j++) {
-    			data.append(list.get(i).offset.get(j) + ",");
-    		}
-    		data.append(list.get(i).offset.get(list.get(i).offset.size()-1));
-    		data.append(".");
+    // ==================================================================
+
+
+    /**
+     *  Maps the dictionary and data files in memory. From then on getPostings
+     *  probes the hash table and decodes the postings directly from the mapped
+     *  buffers, without a seek, a read or an allocation per probe. The index
+     *  must not be written to afterwards.
+     *
+     *  @return false if the files could not be mapped (e.g. a data file larger
+     *  than 2GB); the index then keeps using the RandomAccessFiles.
+     */
+    public boolean mapFiles() {
+    	try {
+    		if(dictionaryFile.length() > Integer.MAX_VALUE || dataFile.length() > Integer.MAX_VALUE || termsFile.length() > Integer.MAX_VALUE)
+    			return false;
+    		dictionaryMap = dictionaryFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, dictionaryFile.length());
+    		dataMap = dataFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, dataFile.length());
+    		termsMap = termsFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, termsFile.length());
+    		return true;
+    	}
+    	catch ( IOException e ) {
+    		e.printStackTrace();
+    		dictionaryMap = null;
+    		dataMap = null;
+    		termsMap = null;
+    		return false;
     	}
-    	
-    	return data.toString();
-    }
-    
-    public PostingsList StringToPostings(String data) {
-    	
-    	PostingsList pl = null;
-        StringTokenizer offsetToken, listToken, docToken = null;
-        ArrayList<Integer> offset;
-        String buf;
-        int docID;
-        
-        docToken = new StringTokenizer(data);
-        buf = docToken.nextToken(); // ignore token string
-        
-        docToken = new StringTokenizer(data.substring(buf.length()+1, data.length()), ".");
-        
-        
-        while(docToken.hasMoreTokens()) {
-        	
-        	
-        	listToken = new StringTokenizer(docToken.nextToken(), ":");
-        	
-        	buf = listToken.nextToken();
-            docID = Integer.parseInt(buf);
-            
-            offsetToken = new StringTokenizer(listToken.nextToken(), ",");
-            
-            
-           
-            offset = new ArrayList<>();
-            
-            
-            
-            while(offsetToken.hasMoreTokens()) {
-                buf = offsetToken.nextToken();
-                offset.add(Integer.parseInt(buf));
-            }
-            
-            
-            if(pl == null) {
-            	
-            	pl = new PostingsList(docID, offset);
-            	
-            } else {
-            	pl.addPosting(docID, offset);
-            }
-            
-            
-            
-        }
-        
-        return pl;
-        
     }
 
- 
-    // ==================================================================
+
+    /**
+     *  Looks a token up in the mapped dictionary. A slot is checked by its
+     *  fingerprint, and a match is confirmed against the mapped terms file.
+     */
+    PostingsList getMappedPostings( String token ) {
+    	int fp = fingerprint(token);
+    	byte[] key = null;
+    	long tableEnd = TABLESIZE * entryLen;
+    	long ptr = h(token, 0);
+    	while(ptr + entryLen <= dictionaryMap.limit()) {
+    		int slot = (int) ptr;
+    		if(dictionaryMap.get(slot) != (byte) 75)
+    			return null;
+    		if(dictionaryMap.getInt(slot + Byte.BYTES) == fp) {
+    			if(key == null)
+    				key = token.getBytes(StandardCharsets.UTF_8);
+    			int termPtr = dictionaryMap.getInt(slot + Byte.BYTES + Integer.BYTES);
+    			// the data file is mapped, so it is smaller than 2GB
+    			if(PostingsCodec.hasToken(termsMap, termPtr, key))
+    				return PostingsCodec.decode(dataMap, (int) dictionaryMap.getLong(slot + Byte.BYTES + 2*Integer.BYTES));
+    		}
+    		ptr = (ptr + entryLen) % tableEnd;
+    	}
+    	return null;
+    }
 
 
     /**
@@ -411,40 +485,92 @@ public class PersistentHashedIndex implements Index {
 		//
 		//  REPLACE THE STATEMENT BELOW WITH YOUR CODE
 		//
-    	Entry entry;
-    	long ptr = h(token, 0);
-    	
-    	int coll = 0;
-    	entry = readEntry(ptr, dictionaryFile, dataFile);
-    	
-    	if(entry == null) {
-    		return null;
+    	if(sortedDictionary != null) {
+    		SortedDictionary.TermInfo info = sortedDictionary.lookup(token);
+    		if(info == null)
+    			return null;
+    		if(dataMap != null)
+    			return PostingsCodec.decode(dataMap, (int) info.ptr);
+    		return PostingsCodec.decode(ByteBuffer.wrap(readData(info.ptr, info.len, dataFile)), 0);
     	}
+    	if(dictionaryMap != null)
+    		return getMappedPostings(token);
     	
-    	while(!entry.token.equals(token)) {
-    		coll++;
-    		ptr = h(token, coll);
-    		entry = readEntry(ptr, dictionaryFile, dataFile);
-    		if(entry == null) {
-        		return null;
-        	}
-    	}
+    	Entry entry = findEntry(token, dictionaryFile, termsFile);
+    	if(entry == null)
+    		return null;
     	
-    	return StringToPostings(readData(entry.ptrToData, entry.len, dataFile));
+    	return PostingsCodec.decode(ByteBuffer.wrap(readData(entry.ptrToData, entry.len, dataFile)), 0);
     }
     
 
+    /**
+     *  Returns the first <code>max</code> terms of the dictionary starting
+     *  with a prefix and matching a wildcard pattern (null for all), in order,
+     *  or null if the dictionary is a hash table and cannot enumerate them.
+     */
+    public List<String> prefixTerms( String prefix, String pattern, int max ) {
+    	return sortedDictionary == null ? null : sortedDictionary.prefixTerms(prefix, pattern, max);
+    }
+
+
+    /**
+     *  Returns the statistics for ranked retrieval. Those of a committed
+     *  index are only read on first use.
+     */
+    public synchronized ScoringStatistics getStatistics() {
+    	if(stats == null)
+    		stats = readStatistics();
+    	if(stats == null)
+    		stats = ScoringStatistics.build(index, docLengths);
+    	return stats;
+    }
+
+
+    /**
+     *  Reads the statistics stored with the committed index, or returns null if there are none.
+     */
+    ScoringStatistics readStatistics() {
+        try {
+            return ScoringStatistics.read( INDEXDIR + "/" + STATS_FNAME );
+        }
+        catch ( FileNotFoundException e ) {
+        }
+        catch ( IOException e ) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+
     /**
      *  Inserts this token in the main-memory hashtable.
      */
-    public void insert( String token, int docID, int offset ) {
+    public boolean insert( String token, int docID, int offset ) {
 		//
 		//  YOUR CODE HERE
 		//
-    	if(!index.containsKey(token)) {
+    	PostingsList list = index.get(token);
+    	if(list == null) {
     		index.put(token, new PostingsList(docID, offset));
-    	} else {
-    		index.get(token).addPosting(docID, offset);
+    		return true;
+    	}
+    	list.addPosting(docID, offset);
+    	return false;
+    }
+
+
+    /**
+     *  Appends postings lists whose documents all come after the ones
+     *  inserted so far. The lists of new terms are taken over.
+     */
+    public void insertAll( Map<String,PostingsList> lists ) {
+    	for(Map.Entry<String,PostingsList> entry : lists.entrySet()) {
+    		PostingsList list = index.get(entry.getKey());
+    		if(list == null)
+    			index.put(entry.getKey(), entry.getValue());
+    		else
+    			list.addAll(entry.getValue());
     	}
     }
 
@@ -1,471 +1,675 @@
 package ir;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.RandomAccessFile;
-import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Scanner;
-
-import ir.PersistentHashedIndex.Entry;
-
-public class PersistentScalableHashedIndex extends PersistentHashedIndex implements Runnable {
-	
-	public int Nfile = 1;
-	RandomAccessFile mainDataFile;
-	RandomAccessFile mainDictionaryFile;
-	private Thread t = null;
-	public boolean kill = false;
-	int doc1, doc2;
-	
-	public PersistentScalableHashedIndex(int doc1, int doc2) {
-		super(doc1, doc2);
-		this.doc1 = doc1;
-		this.doc2 = doc2;
-	}
-	
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *   A persistent index built with single-pass in-memory indexing (SPIMI)
+ *   and tiered background merging.
+ *
+ *   Tokens are put in the main-memory hash map until its estimated size
+ *   exceeds a memory budget. The map is then flushed to disk as a level-0
+ *   segment: its terms sorted, each with its postings record. As soon as
+ *   <code>mergeFactor</code> segments of a level are there, a merge thread
+ *   combines them into one segment of the next level while indexing goes on.
+ *   The segments of a level thus have similar sizes, and every posting is
+ *   rewritten once per level. Until the index is committed, getPostings
+ *   combines the in-memory index with all the live segments.
+ *
+ *   At commit, the remaining segments are merged at once, with a heap on
+ *   their current terms, and the dictionary, data and terms files are
+ *   written in one sequential pass.
+ *
+ *   A committed index can also be updated incrementally (see
+ *   IncrementalIndexer): the new documents are then committed as a delta
+ *   segment kept next to the dictionary, and the deleted ones are recorded
+ *   in a tombstone bitmap. A manifest records the files indexed.
+ */
+public class PersistentScalableHashedIndex extends PersistentHashedIndex {
+
+	/** The segment files are named run0, run1, ... */
+	public static final String RUN_FNAME = "run";
+
+	/** The committed delta segments are named delta0, delta1, ... */
+	public static final String DELTA_FNAME = "delta";
+
+	/** The manifest file name */
+	public static final String MANIFEST_FNAME = "manifest";
+
+	/** The tombstones file name */
+	public static final String TOMBSTONES_FNAME = "tombstones";
+
+	/**
+	 *  Estimated size (in bytes) of the in-memory index beyond which it is
+	 *  flushed. By default a quarter of the maximum heap, which leaves room
+	 *  for the document info, the garbage collector and the merges.
+	 */
+	public long memoryBudget = Runtime.getRuntime().maxMemory() / 4;
+
+	/** Number of segments of a level merged together. */
+	public int mergeFactor = 4;
+
+	/** Number of threads running the background merges. */
+	public int mergeThreads = 2;
+
+	/** Estimated heap bytes per term besides its postings list: the String and the map entry. */
+	static final int TERM_OVERHEAD = 96;
+
+	/** Estimated size (in bytes) of the in-memory index, kept up to date by insert. */
+	long footprint = 0;
+
+	/** The live segments, oldest first. Guarded by its own lock. */
+	ArrayList<Segment> segments = new ArrayList<Segment>();
+
+	/** Number of segment files created, used to name them. */
+	int segmentFiles = 0;
+
+	/** Runs the background merges; created on the first flush. */
+	ExecutorService mergeScheduler = null;
+
+	/** Metrics of each flushed run: estimated size when flushed, bytes on disk and number of terms. */
+	ArrayList<Long> runFootprints = new ArrayList<Long>();
+	ArrayList<Long> runBytes = new ArrayList<Long>();
+	ArrayList<Integer> runTerms = new ArrayList<Integer>();
+
+	/** Metrics of the background merges: their number, the bytes written, and the time spent. */
+	AtomicLong backgroundMerges = new AtomicLong();
+	AtomicLong backgroundMergeBytes = new AtomicLong();
+	AtomicLong backgroundMergeTime = new AtomicLong();
+
+	/** Time spent in the final merge, in milliseconds. */
+	long mergeTime = 0;
+
+	/** Statistics of the documents flushed so far; the terms are added when merging. */
+	ScoringStatistics blockStats = new ScoringStatistics();
+
+	/** The documents with a smaller docID are in the statistics already. */
+	int docStatsEnd = 0;
+
+	/** Documents deleted since the last commit, still counted in the statistics of their terms. */
+	BitSet uncountedDocs = new BitSet();
+
+	/** Whether the index is being updated, instead of built from scratch. */
+	boolean incremental = false;
+
+	/** The files in the index (read when updating). */
+	Manifest manifest = new Manifest();
+
+	/** The committed delta segments, searched together with the dictionary. */
+	ArrayList<Segment> deltas = new ArrayList<Segment>();
+
+	/** Number of the next delta segment file. */
+	int deltaFiles = 0;
+
+
+	/**
+	 *  Opens the index, with its delta segments and tombstones.
+	 */
 	public PersistentScalableHashedIndex() {
 		super();
-		this.mainDataFile = dataFile;
-		this.mainDictionaryFile = dictionaryFile;
-    }
-	
-	public void insert( String token, int docID, int offset ) {
-		if(index.size() == 75000) { //250000
-			
-			try {
-	            this.dictionaryFile = new RandomAccessFile( INDEXDIR + "/" + DICTIONARY_FNAME + Nfile, "rw" );
-	            this.dataFile = new RandomAccessFile( INDEXDIR + "/" + DATA_FNAME + Nfile, "rw" );
-	        }
-	        catch ( IOException e ) {
-	            e.printStackTrace();
-	        }
-			
-			Integer lastdocid = null;
-			String lastdocname = null;
-			Integer lastdoclen = null;
-			int maxdocid = 0;
-			
-			for(Map.Entry<Integer,String> entry : docNames.entrySet()) {
-				if(maxdocid < entry.getKey())
-					maxdocid = entry.getKey();
+		try {
+			readTombstones();
+			String[] files = new File( INDEXDIR ).list();
+			ArrayList<Integer> numbers = new ArrayList<Integer>();
+			for(String file : files == null ? new String[0] : files) {
+				if(file.startsWith(DELTA_FNAME) && file.length() > DELTA_FNAME.length() && file.substring(DELTA_FNAME.length()).matches("[0-9]+"))
+					numbers.add(Integer.parseInt(file.substring(DELTA_FNAME.length())));
 			}
-			
-			lastdocid = maxdocid;
-			lastdocname = docNames.remove(lastdocid);
-			lastdoclen = docLengths.remove(lastdocid);
-			
-			//scrivi su nuovi file
-			writeIndex();
-			
-			//append new docinfo at main doc info
-			appendDocInfo();
-			
-			if(Nfile == 2) {
-				// fai partire il secondo thread per il merging
-				t = new Thread(new PersistentScalableHashedIndex(Nfile-1, Nfile));
-				t.start();
-			} else if(Nfile > 2) {
-				try {
-					t.join();
-				} catch (InterruptedException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
-				t = new Thread(new PersistentScalableHashedIndex(0, Nfile));
-				t.start();
+			numbers.sort(null);
+			for(int number : numbers) {
+				deltas.add(Segment.open(deltaName(number), 0));
+				deltaFiles = number + 1;
 			}
-			Nfile++;
-			
-			//cancella memoria da index
-			this.index = new HashMap<String,PostingsList>();
-			this.free = 0L;
-			
-			docNames.clear();
-			docLengths.clear();
-			docNames.put(lastdocid, lastdocname);
-			docLengths.put(lastdocid, lastdoclen);
 		}
-		
-		if(!index.containsKey(token)) {
-    		index.put(token, new PostingsList(docID, offset));
-    	} else {
-    		index.get(token).addPosting(docID, offset);
-    	}
-	}
-	
-	public void appendDocInfo() {
-		 
-		String docInfo1 = INDEXDIR + "/docInfo" + Nfile;
-		String docInfoMain = INDEXDIR + "/docInfo";
- 
-		File fin = new File(docInfo1);
-		FileInputStream fis=null;
-		try {
-			fis = new FileInputStream(fin);
-		} catch (FileNotFoundException e) {
-			// TODO Auto-generated catch block
+		catch ( IOException e ) {
 			e.printStackTrace();
 		}
-		BufferedReader in = new BufferedReader(new InputStreamReader(fis));
- 
-		FileWriter fstream=null;
+	}
+
+
+	String deltaName( int number ) {
+		return INDEXDIR + "/" + DELTA_FNAME + number;
+	}
+
+
+	/**
+	 *  Prepares an incremental update: the new documents are added to the
+	 *  committed ones, their document info and statistics included.
+	 */
+	public void beginUpdate() {
+		incremental = true;
 		try {
-			fstream = new FileWriter(docInfoMain, true);
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			manifest = Manifest.read( INDEXDIR + "/" + MANIFEST_FNAME );
 		}
-		BufferedWriter out = new BufferedWriter(fstream);
- 
-		String aLine = null;
-		try {
-			while ((aLine = in.readLine()) != null) {
-				//Process each line and add output to Dest.txt file
-				out.write(aLine);
-				out.newLine();
-			}
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
+		catch ( IOException e ) {
 			e.printStackTrace();
 		}
-		
-		try {
-			in.close();
-			out.close();
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+		docStatsEnd = nextDocID();
+		if(stats == null)
+			stats = readStatistics();
+		if(stats != null)
+			blockStats = stats;
+	}
+
+
+	/**
+	 *  Returns the first docID not used in the index (by deleted documents either).
+	 */
+	public int nextDocID() {
+		int next = 0;
+		for(int doc : docNames.keySet()) {
+			next = Math.max(next, doc + 1);
 		}
- 
-		
+		for(Manifest.Entry entry : manifest.entries.values()) {
+			next = Math.max(next, entry.docID + 1);
+		}
+		return Math.max(next, deletedDocs.length());
 	}
-	
-	private void writeDocInfo() throws IOException {
-        FileOutputStream fout = new FileOutputStream( INDEXDIR + "/docInfo" + Nfile);
-        for (Map.Entry<Integer,String> entry : docNames.entrySet()) {
-            Integer key = entry.getKey();
-            String docInfoEntry = key + ";" + entry.getValue() + ";" + docLengths.get(key) + "\n";
-            fout.write(docInfoEntry.getBytes());
-        }
-        fout.close();
-    }
-	
-	public void writeIndex() {
-        int collisions = 0, len, coll;
-        String data;
-        long ptr;
-        Entry element = null;
-        try {
-            // Write the 'docNames' and 'docLengths' hash maps to a file
-            writeDocInfo();
-
-            // Write the dictionary and the postings list
-           
-		    // 
-		    //  YOUR CODE HERE
-		    //
-            
-            for (Map.Entry<String,PostingsList> entry : index.entrySet()) {
-            	
-            	data = PostingsToString(entry.getValue(), entry.getKey());
-            	
-            	len = writeData(data, free, dataFile);
-            	
-            	coll = 0;
-            	ptr = h(entry.getKey(), coll);
-            	
-            	element = new Entry();
-            	element.len = len;
-            	element.ptrToData = free;
-            	free += len;
-            	
-            	while(readEntry(ptr, dictionaryFile, dataFile) != null) {
-            		coll++;
-            		ptr = h(entry.getKey(), coll);
-            		collisions++;
-            	}
-            	
-            	writeEntry(element, ptr, dictionaryFile);
-            	
-            }
-            
-        }
-        catch ( IOException e ) {
-            e.printStackTrace();
-        }
-        System.err.println( collisions + " collisions." );
-    }
-	
-	
-	public Entry getEntry( String token, RandomAccessFile dictionaryFile, RandomAccessFile dataFile ) {
-		//
-		//  REPLACE THE STATEMENT BELOW WITH YOUR CODE
-		//
-    	Entry entry;
-    	long ptr = h(token, 0);
-    	
-    	int coll = 0;
-    	entry = readEntry(ptr, dictionaryFile, dataFile);
-    	
-    	if(entry == null) {
-    		return null;
-    	}
-    	
-    	while(!entry.token.equals(token)) {
-    		coll++;
-    		ptr = h(token, coll);
-    		entry = readEntry(ptr, dictionaryFile, dataFile);
-    		if(entry == null) {
-        		return null;
-        	}
-    		if(!entry.valid)
-            	return null;
-    	}
-    	
-    	return entry;
-    }
-	
-	public void cleanup() {
-        System.err.println( index.keySet().size() + " unique words" );
-        System.err.print( "Writing index to disk..." );
-        
-        try {
-            this.dictionaryFile = new RandomAccessFile( INDEXDIR + "/" + DICTIONARY_FNAME + Nfile, "rw" );
-            this.dataFile = new RandomAccessFile( INDEXDIR + "/" + DATA_FNAME + Nfile, "rw" );
-        }
-        catch ( IOException e ) {
-            e.printStackTrace();
-        }
-        writeIndex();
-        appendDocInfo();
-        if(Nfile == 2) {
-			// fai partire il secondo thread per il merging
-			t = new Thread(new PersistentScalableHashedIndex(Nfile-1, Nfile));
-			t.start();
-			try {
-				t.join();
-			} catch (InterruptedException e) {
-				e.printStackTrace();
+
+
+	/**
+	 *  Deletes a document: it gets a tombstone, and is no longer in the statistics.
+	 *  The statistics of its terms are recomputed when the update is committed.
+	 */
+	public void delete( int docID ) {
+		deletedDocs.set(docID);
+		uncountedDocs.set(docID);
+		blockStats.removeDocument(docID);
+	}
+
+
+	/**
+	 *  Recomputes the statistics of the terms of the documents deleted since
+	 *  the last commit from their remaining postings, so that the document
+	 *  frequencies only count live documents (and never exceed N). The
+	 *  documents do not record their terms: all the postings are read.
+	 */
+	void uncountDeleted() {
+		if(uncountedDocs.isEmpty())
+			return;
+		for(String term : blockStats.terms()) {
+			PostingsList list = getPostings(term);
+			if(list == null)
+				continue;
+			boolean counted = false;
+			for(int i = 0; i < list.size() && !counted; i++) {
+				counted = uncountedDocs.get(list.getDocID(i));
 			}
-		} else if(Nfile > 2) {
-			try {
-				t.join();
-			} catch (InterruptedException e) {
-				e.printStackTrace();
+			if(!counted)
+				continue;
+			PostingsList live = new PostingsList();
+			for(int i = 0; i < list.size(); i++) {
+				if(!deletedDocs.get(list.getDocID(i)))
+					live.addPosting(list, i);
 			}
-			t = new Thread(new PersistentScalableHashedIndex(0, Nfile));
-			t.start();
+			blockStats.setTerm(term, live);
 		}
-        try {
-			t.join();
-		} catch (InterruptedException e2) {
-			// TODO Auto-generated catch block
-			e2.printStackTrace();
+		uncountedDocs.clear();
+	}
+
+
+	void readTombstones() throws IOException {
+		deletedDocs.clear();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream( INDEXDIR + "/" + TOMBSTONES_FNAME )))) {
+			long[] words = new long[in.readInt()];
+			for(int i = 0; i < words.length; i++) {
+				words[i] = in.readLong();
+			}
+			deletedDocs.or(BitSet.valueOf(words));
 		}
-        
-        try {
-			readDocInfo();
-		} catch (IOException e1) {
-			// TODO Auto-generated catch block
-			e1.printStackTrace();
+		catch ( FileNotFoundException e ) {
 		}
-        try {
-			this.dictionaryFile = new RandomAccessFile( INDEXDIR + "/" + DICTIONARY_FNAME, "rw" );
-			this.dataFile = new RandomAccessFile( INDEXDIR + "/" + DATA_FNAME, "rw" );
-		} catch (FileNotFoundException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+	}
+
+
+	void writeTombstones() throws IOException {
+		long[] words = deletedDocs.toLongArray();
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream( INDEXDIR + "/" + TOMBSTONES_FNAME )))) {
+			out.writeInt(words.length);
+			for(long word : words) {
+				out.writeLong(word);
+			}
 		}
-        PageRankSparse pr = new PageRankSparse( "linksDavis.txt" );
-        System.err.println( "done!" );
-        
-     }
-	
-	public String jointPostings(String s1, String s2) {
-		String result = s1;
-		char c = s2.charAt(0);
-		int idx = 0;
-		
-		while(c != ' ') {
-			idx++;
-			c = s2.charAt(idx);
+	}
+
+
+	/**
+	 *  Inserts this token in the main-memory hashtable, and flushes the
+	 *  hashtable to a run when its estimated size exceeds the budget. The
+	 *  estimate follows the capacity of the postings arrays, so it grows with
+	 *  the postings volume and not just with the number of terms.
+	 */
+	public boolean insert( String token, int docID, int offset ) {
+		PostingsList list = index.get(token);
+		boolean added = list == null;
+		if(added) {
+			list = new PostingsList(docID, offset);
+			index.put(token, list);
+			footprint += TERM_OVERHEAD + 2 * token.length() + list.footprint();
+		} else {
+			long before = list.footprint();
+			list.addPosting(docID, offset);
+			footprint += list.footprint() - before;
 		}
-		idx++;
-		
-		result = s1 + s2.substring(idx);
-		
-		return result;
+		if(footprint > memoryBudget)
+			flush();
+		return added;
 	}
-	
-	public void run() {
-		RandomAccessFile dictionaryFile1=null, dictionaryFile2=null, dataFile1=null, dataFile2=null, dictionaryFileMain=null, dataFileMain=null;
-		
-		if(doc1 == 0) {
-			try {
-				Files.copy(Paths.get(INDEXDIR + "/" + DICTIONARY_FNAME), Paths.get(INDEXDIR + "/" + DICTIONARY_FNAME + 0));
-				Files.copy(Paths.get(INDEXDIR + "/" + DATA_FNAME), Paths.get(INDEXDIR + "/" + DATA_FNAME + 0));
-				Files.deleteIfExists(Paths.get(INDEXDIR + "/" + DICTIONARY_FNAME));
-				Files.deleteIfExists(Paths.get(INDEXDIR + "/" + DATA_FNAME));
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+
+
+	/**
+	 *  Appends postings lists whose documents all come after the ones
+	 *  inserted so far, and flushes the hashtable to a run whenever its
+	 *  estimated size exceeds the budget, as insert does.
+	 */
+	public void insertAll( Map<String,PostingsList> lists ) {
+		for(Map.Entry<String,PostingsList> entry : lists.entrySet()) {
+			String token = entry.getKey();
+			PostingsList list = index.get(token);
+			if(list == null) {
+				list = entry.getValue();
+				index.put(token, list);
+				footprint += TERM_OVERHEAD + 2 * token.length() + list.footprint();
+			} else {
+				long before = list.footprint();
+				list.addAll(entry.getValue());
+				footprint += list.footprint() - before;
 			}
+			if(footprint > memoryBudget)
+				flush();
 		}
-		
-		try {
-			dictionaryFile1 = new RandomAccessFile( INDEXDIR + "/" + DICTIONARY_FNAME + doc1, "r" );
-			dictionaryFile2 = new RandomAccessFile( INDEXDIR + "/" + DICTIONARY_FNAME + doc2, "r" );
-			dictionaryFileMain = new RandomAccessFile( INDEXDIR + "/" + DICTIONARY_FNAME, "rw" );
-			dataFile1 = new RandomAccessFile( INDEXDIR + "/" + DATA_FNAME + doc1, "r" );
-			dataFile2 = new RandomAccessFile( INDEXDIR + "/" + DATA_FNAME + doc2, "r" );
-			dataFileMain = new RandomAccessFile( INDEXDIR + "/" + DATA_FNAME, "rw" );
-        }
-        catch ( IOException e ) {
-            e.printStackTrace();
-        }
-		
-		//merge documents
-		
-		long lenDic=0;
+	}
+
+
+	/**
+	 *  Writes the in-memory index to a new level-0 segment, sorted by term,
+	 *  and the completed documents to the docInfo file, empties the in-memory
+	 *  index, and schedules the merges that became possible.
+	 */
+	void flush() {
 		try {
-			lenDic = dictionaryFile1.length();
-		} catch (IOException e1) {
-			e1.printStackTrace();
-		}
-		
-		long free = 0L;
-		
-		for(long idx = 0L; idx < lenDic; idx += entryLen) {
-			Entry entry1 = readEntry( idx, dictionaryFile1, dataFile1 );
-			if(entry1 != null) {
-				Entry entry2 = getEntry( entry1.token, dictionaryFile2, dataFile2);
-				Entry newEntry = null;
-				String posting = null;
-				int lendata = 0;
-				
-				if(entry2 == null) { // trovato doppione nel secondo dizionario
-					
-					posting = readData(entry1.ptrToData, entry1.len, dataFile1);
-					
-				} else { // il termine non c'è nel secondo dizionario
-					
-					posting = jointPostings(readData(entry1.ptrToData, entry1.len, dataFile1), readData(entry2.ptrToData, entry2.len, dataFile2));
+			if(!index.isEmpty()) {
+				String[] terms = index.keySet().toArray(new String[index.size()]);
+				Arrays.sort(terms);
+				Segment.Writer writer = new Segment.Writer(newSegmentName(), 0);
+				for(String term : terms) {
+					writer.add(term, index.get(term));
 				}
-				
-				lendata = posting.length();
-				
-				writeData(posting, free, dataFileMain);
-				
-				int coll = 0;
-	        	long ptr = h(entry1.token, coll);
-	        	
-	        	newEntry = new Entry();
-	        	newEntry.len = lendata;
-	        	newEntry.ptrToData = free;
-	        	newEntry.token = entry1.token;
-	        	free += lendata;
-	        	
-	        	while(readEntry(ptr, dictionaryFileMain, dataFileMain) != null) {
-	        		coll++;
-	        		ptr = h(entry1.token, coll);
-	        	}
-	        	
-	        	writeEntry(newEntry, ptr, dictionaryFileMain);
+				Segment segment = writer.finish();
+				runFootprints.add(footprint);
+				runBytes.add(segment.bytes);
+				runTerms.add(segment.terms);
+				synchronized(segments) {
+					segments.add(segment);
+				}
+				index = new HashMap<String,PostingsList>();
+				footprint = 0;
+				scheduleMerges();
 			}
+			addDocumentStats();
 		}
-		
-		try {
-			lenDic = dictionaryFile2.length();
-		} catch (IOException e1) {
-			e1.printStackTrace();
+		catch ( IOException e ) {
+			e.printStackTrace();
+		}
+	}
+
+
+	String newSegmentName() {
+		synchronized(segments) {
+			return INDEXDIR + "/" + RUN_FNAME + segmentFiles++;
 		}
-		
-		for(long idx = 0L; idx < lenDic; idx += entryLen) {
-			Entry entry2 = readEntry( idx, dictionaryFile2, dataFile2 );
-			if(entry2 != null) {
-				Entry entry1 = getEntry( entry2.token, dictionaryFile1, dataFile1);
-				Entry newEntry = null;
-				String posting = null;
-				int lendata = 0;
-				
-				if(entry1 == null) { // trovato doppione nel secondo dizionario
-					
-					posting = readData(entry2.ptrToData, entry2.len, dataFile2);
-					
-					lendata = posting.length();
-					
-					writeData(posting, free, dataFileMain);
-					
-					int coll = 0;
-		        	long ptr = h(entry2.token, coll);
-		        	
-		        	newEntry = new Entry();
-		        	newEntry.len = lendata;
-		        	newEntry.ptrToData = free;
-		        	newEntry.token = entry2.token;
-		        	free += lendata;
-		        	
-		        	while(readEntry(ptr, dictionaryFileMain, dataFileMain) != null) {
-		        		coll++;
-		        		ptr = h(entry2.token, coll);
-		        	}
-		        	
-		        	writeEntry(newEntry, ptr, dictionaryFileMain);
-					
+	}
+
+
+	/**
+	 *  Starts a background merge for every group of <code>mergeFactor</code>
+	 *  segments of the same level not being merged already.
+	 */
+	void scheduleMerges() {
+		synchronized(segments) {
+			if(mergeScheduler == null)
+				mergeScheduler = Executors.newFixedThreadPool(mergeThreads);
+			HashMap<Integer,ArrayList<Segment>> levels = new HashMap<Integer,ArrayList<Segment>>();
+			for(Segment segment : segments) {
+				if(segment.merging)
+					continue;
+				ArrayList<Segment> level = levels.get(segment.level);
+				if(level == null) {
+					level = new ArrayList<Segment>();
+					levels.put(segment.level, level);
+				}
+				level.add(segment);
+				if(level.size() < mergeFactor)
+					continue;
+				final ArrayList<Segment> inputs = level;
+				levels.put(segment.level, new ArrayList<Segment>());
+				for(Segment input : inputs)
+					input.merging = true;
+				try {
+					mergeScheduler.execute(new Runnable() {
+						public void run() {
+							mergeSegments(inputs);
+						}
+					});
+				}
+				catch ( RejectedExecutionException e ) {
+					// committing: the final merge takes these segments
+					for(Segment input : inputs)
+						input.merging = false;
 				}
 			}
 		}
-		
+	}
+
+
+	/**
+	 *  Merges segments into one segment of the next level, which takes their
+	 *  place. Runs on a merge thread.
+	 */
+	void mergeSegments( ArrayList<Segment> inputs ) {
+		long startTime = System.currentTimeMillis();
 		try {
-			dictionaryFile1.close();
-			dictionaryFile2.close();
-			dictionaryFileMain.close();
-			dataFile1.close();
-			dataFile2.close();
-			dataFileMain.close();
-		} catch (IOException e) {
-			e.printStackTrace();
+			Segment.Writer writer = new Segment.Writer(newSegmentName(), inputs.get(0).level + 1);
+			Segment.Merger merger = new Segment.Merger(inputs);
+			while(merger.next()) {
+				writer.add(merger.token, merger.list);
+			}
+			Segment merged = writer.finish();
+			synchronized(segments) {
+				// at the place of the oldest input, so the segments stay in docID order
+				int at = segments.indexOf(inputs.get(0));
+				segments.removeAll(inputs);
+				segments.add(at, merged);
+			}
+			for(Segment input : inputs) {
+				input.delete();
+			}
+			backgroundMerges.incrementAndGet();
+			backgroundMergeBytes.addAndGet(merged.bytes);
+			backgroundMergeTime.addAndGet(System.currentTimeMillis() - startTime);
+			scheduleMerges();
 		}
-		
-		if(doc1 == 0) {
-			try {
-				Files.deleteIfExists(Paths.get(INDEXDIR + "/" + DICTIONARY_FNAME + 0));
-				Files.deleteIfExists(Paths.get(INDEXDIR + "/" + DATA_FNAME + 0));
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+		catch ( IOException e ) {
+			e.printStackTrace();
+			synchronized(segments) {
+				for(Segment input : inputs)
+					input.merging = false;
 			}
-			
 		}
 	}
 
-}
+
+	/**
+	 *  Adds the documents whose length is known (i.e. not the one being
+	 *  indexed) and not added yet to the statistics.
+	 */
+	void addDocumentStats() {
+		HashMap<Integer,Integer> done = new HashMap<Integer,Integer>();
+		int end = docStatsEnd;
+		for (Map.Entry<Integer,Integer> entry : docLengths.entrySet()) {
+			Integer key = entry.getKey();
+			if(key < docStatsEnd)
+				continue;
+			done.put(key, entry.getValue());
+			end = Math.max(end, key + 1);
+		}
+		docStatsEnd = end;
+		blockStats.addDocuments( done );
+	}
 
 
+	/**
+	 *  Returns the postings for a specific term, or null if the term is not
+	 *  in the index. The postings are gathered from the dictionary and the
+	 *  delta segments, and from the in-memory index and all the live segments
+	 *  until they are committed. While the index is built from scratch, the
+	 *  dictionary and delta segments are outdated, and left aside.
+	 */
+	public PostingsList getPostings( String token ) {
+		Segment[] live;
+		synchronized(segments) {
+			live = segments.toArray(new Segment[segments.size()]);
+		}
+		boolean rebuilding = !incremental && (live.length > 0 || !index.isEmpty());
+
+		PostingsList result = null;
+		if(!rebuilding) {
+			result = super.getPostings(token);
+			for(Segment delta : deltas) {
+				try {
+					PostingsList list = delta.getPostings(token);
+					if(list != null)
+						result = result == null ? list : PostingsList.merge(result, list);
+				}
+				catch ( IOException e ) {
+					e.printStackTrace();
+				}
+			}
+		}
+		for(Segment segment : live) {
+			try {
+				PostingsList list = segment.getPostings(token);
+				if(list != null)
+					result = result == null ? list : PostingsList.merge(result, list);
+			}
+			catch ( IOException e ) {
+				if(segment.closed) // merged meanwhile: start again on the new segments
+					return getPostings(token);
+				e.printStackTrace();
+			}
+		}
+		PostingsList list = index.get(token);
+		if(list != null)
+			result = result == null ? list : PostingsList.merge(result, list);
+		return result;
+	}
 
 
+	/**
+	 *  Only the committed terms are in the sorted dictionary: the prefixes
+	 *  are not enumerated while there are deltas, segments or an in-memory index.
+	 */
+	public List<String> prefixTerms( String prefix, String pattern, int max ) {
+		synchronized(segments) {
+			if(!segments.isEmpty())
+				return null;
+		}
+		if(!deltas.isEmpty() || !index.isEmpty())
+			return null;
+		return super.prefixTerms(prefix, pattern, max);
+	}
 
 
+	/**
+	 *  Flushes the last run, waits for the background merges, and merges the
+	 *  remaining segments into the dictionary, data and terms files, or into
+	 *  a delta segment when updating.
+	 */
+	public void writeIndex() {
+		int collisions = 0;
+		try {
+			flush();
+			if(mergeScheduler != null) {
+				mergeScheduler.shutdown();
+				mergeScheduler.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+				mergeScheduler = null;
+			}
+			if(incremental) {
+				writeDelta();
+				return;
+			}
+			long startTime = System.currentTimeMillis();
 
+			ArrayList<Segment> inputs;
+			synchronized(segments) {
+				inputs = new ArrayList<Segment>(segments);
+			}
+			Segment.Merger merger = new Segment.Merger(inputs);
+			truncateFiles();
+			BulkIndexWriter writer = new BulkIndexWriter( this, dictionaryFile, dataFile, termsFile, free, freeTerm );
+			while(merger.next()) {
+				writer.add(merger.token, merger.list);
+				blockStats.addTerm(merger.token, merger.list);
+			}
+			writer.finish();
+			free = writer.free;
+			freeTerm = writer.freeTerm;
+			collisions = writer.collisions;
+			mergeTime = System.currentTimeMillis() - startTime;
 
+			synchronized(segments) {
+				segments.clear();
+			}
+			for(Segment segment : inputs) {
+				segment.delete();
+			}
 
+			blockStats.finish();
+			blockStats.write( INDEXDIR + "/" + STATS_FNAME );
+			stats = blockStats;
 
+			// the dictionary holds all documents now
+			for(Segment delta : deltas) {
+				delta.delete();
+			}
+			deltas.clear();
+			deletedDocs.clear();
+			uncountedDocs.clear();
+			writeTombstones();
+			writeDocInfo();
+			readDocInfo();
+			manifest = new Manifest();
+			for(Map.Entry<Integer,String> entry : docNames.entrySet()) {
+				File f = new File(entry.getValue());
+				if(f.isFile())
+					manifest.record(f, entry.getKey());
+			}
+			manifest.write( INDEXDIR + "/" + MANIFEST_FNAME );
+		}
+		catch ( IOException e ) {
+			e.printStackTrace();
+		}
+		catch ( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+		}
+		System.err.println( collisions + " collisions." );
+	}
 
 
+	/**
+	 *  Commits an incremental update: merges the segments into a new delta
+	 *  segment, and writes the statistics, tombstones and manifest. Once there
+	 *  are more than <code>mergeFactor</code> delta segments, they are merged
+	 *  into one, without the postings of the deleted documents.
+	 */
+	void writeDelta() throws IOException {
+		long startTime = System.currentTimeMillis();
+		ArrayList<Segment> inputs;
+		synchronized(segments) {
+			inputs = new ArrayList<Segment>(segments);
+		}
+		if(!inputs.isEmpty()) {
+			Segment.Merger merger = new Segment.Merger(inputs);
+			Segment.Writer writer = new Segment.Writer(deltaName(deltaFiles++), 0);
+			while(merger.next()) {
+				writer.add(merger.token, merger.list);
+				blockStats.addTerm(merger.token, merger.list);
+			}
+			deltas.add(writer.finish());
+			synchronized(segments) {
+				segments.clear();
+			}
+			for(Segment segment : inputs) {
+				segment.delete();
+			}
+		}
+		if(deltas.size() > mergeFactor) {
+			Segment.Merger merger = new Segment.Merger(deltas);
+			Segment.Writer writer = new Segment.Writer(deltaName(deltaFiles++), 0);
+			while(merger.next()) {
+				PostingsList list = new PostingsList();
+				for(int i = 0; i < merger.list.size(); i++) {
+					if(!deletedDocs.get(merger.list.getDocID(i)))
+						list.addPosting(merger.list, i);
+				}
+				if(list.size() > 0)
+					writer.add(merger.token, list);
+			}
+			Segment merged = writer.finish();
+			for(Segment delta : deltas) {
+				delta.delete();
+			}
+			deltas.clear();
+			deltas.add(merged);
+		}
+		uncountDeleted();
+		mergeTime = System.currentTimeMillis() - startTime;
 
+		blockStats.finish();
+		blockStats.write( INDEXDIR + "/" + STATS_FNAME );
+		stats = blockStats;
+		writeTombstones();
+		manifest.write( INDEXDIR + "/" + MANIFEST_FNAME );
+		writeDocInfo();
+		readDocInfo();
+	}
 
 
+	/**
+	 *  Returns the indexing metrics: the runs flushed and their estimated
+	 *  and on-disk sizes, the background merges, and the final merge time.
+	 */
+	public String metrics() {
+		long minBytes = Long.MAX_VALUE, maxBytes = 0, totalBytes = 0, totalFootprint = 0, totalTerms = 0;
+		for(int r = 0; r < runBytes.size(); r++) {
+			minBytes = Math.min(minBytes, runBytes.get(r));
+			maxBytes = Math.max(maxBytes, runBytes.get(r));
+			totalBytes += runBytes.get(r);
+			totalFootprint += runFootprints.get(r);
+			totalTerms += runTerms.get(r);
+		}
+		int n = runBytes.size();
+		if(n == 0)
+			return "0 runs flushed";
+		return String.format("%d runs flushed (budget %d MB): %d terms, %.1f MB in memory, %.1f MB on disk (min %.1f, avg %.1f, max %.1f MB per run); "
+				+ "%d background merges wrote %.1f MB in %.1f s; final merge in %.1f s",
+				n, memoryBudget >> 20, totalTerms, totalFootprint / 1048576.0, totalBytes / 1048576.0,
+				minBytes / 1048576.0, totalBytes / 1048576.0 / n, maxBytes / 1048576.0,
+				backgroundMerges.get(), backgroundMergeBytes.get() / 1048576.0, backgroundMergeTime.get() / 1000.0,
+				mergeTime / 1000.0);
+	}
 
 
+	/**
+	 *  Write index to file after indexing is done.
+	 */
+	public void cleanup() {
+		System.err.println( segments.size() + " segments, " + index.keySet().size() + " unique words in memory" );
+		System.err.print( "Writing index to disk..." );
+		writeIndex();
+		System.err.println( metrics() );
+		// an update leaves the links, and the PageRank, as they were
+		if(!incremental) {
+			PageRankSparse pr = new PageRankSparse( "linksDavis.txt" );
+		}
+		System.err.println( "done!" );
+	}
+}
@@ -0,0 +1,41 @@
+package ir;
+
+/**
+ *  Pivoted length normalization (Singhal et al.):
+ *  w * (1 + ln(1 + ln(tf))) / ((1 - s) + s * length/avgLength) * ln((N + 1) / df).
+ */
+public class PivotedScorer implements Scorer {
+
+    /** The slope of the normalization around the pivot (the average length). */
+    double s;
+
+    public PivotedScorer( double s ) {
+    	this.s = s;
+    }
+
+    public PivotedScorer() {
+    	this(0.2);
+    }
+
+    public TermScorer forTerm( final ScoringStatistics stats, final double weight, int df, final int termID ) {
+    	final double idf = Math.log((stats.size() + 1.0) / df);
+    	final double avgLength = stats.avgLength() > 0 ? stats.avgLength() : 1;
+    	return new TermScorer() {
+    		public double score( int tf, int doc ) {
+    			return weight * idf * pivoted(tf, stats.docLength(doc), avgLength);
+    		}
+    		public double upperBound() {
+    			// increasing in tf and decreasing in length
+    			if(termID < 0)
+    				return Double.POSITIVE_INFINITY;
+    			return weight * idf * pivoted(stats.maxTf(termID), stats.minLength(termID), avgLength);
+    		}
+    	};
+    }
+
+    private double pivoted( int tf, int length, double avgLength ) {
+    	if(tf == 0)
+    		return 0;
+    	return (1 + Math.log(1 + Math.log(tf))) / ((1 - s) + s * length / avgLength);
+    }
+}
@@ -0,0 +1,237 @@
+package ir;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ *  The binary format of the postings in the data file of a persistent index.
+ *
+ *  The data file starts with a header (MAGIC, VERSION). Every record then holds
+ *  one term and its postings, all numbers variable-byte encoded (7 bits per
+ *  byte, the high bit set on all bytes but the last):
+ *
+ *  <pre>
+ *  tokenLength token(UTF-8) df positionCount
+ *  ( docGap tf posGap ... ) * df
+ *  </pre>
+ *
+ *  docIDs are stored as gaps from the previous docID, and the positions of a
+ *  document as gaps from the previous position in the same document.
+ */
+public class PostingsCodec {
+
+    /** First four bytes of a data file ("IRPD"). */
+    public static final int MAGIC = 0x49525044;
+
+    /** Version of the record format. */
+    public static final int VERSION = 1;
+
+    /** Size of the data file header; the first record starts here. */
+    public static final int HEADER_LEN = 2 * Integer.BYTES;
+
+
+    /** The encoded bytes, valid up to <code>length</code>. Reused between records. */
+    byte[] bytes = new byte[1024];
+    int length = 0;
+
+
+    /**
+     *  Encodes a token and its postings into <code>bytes</code>.
+     *
+     *  @return The number of bytes of the record.
+     */
+    public int encode( String token, PostingsList list ) {
+    	length = 0;
+    	writeToken(token);
+
+    	writeVByte(list.size);
+    	writeVByte(list.offsetStart[list.size]);
+    	int lastDoc = 0;
+    	for(int i = 0; i < list.size; i++) {
+    		writeVByte(list.docIDs[i] - lastDoc);
+    		lastDoc = list.docIDs[i];
+    		int from = list.offsetStart[i], to = list.offsetStart[i+1];
+    		writeVByte(to - from);
+    		int lastOffset = 0;
+    		for(int j = from; j < to; j++) {
+    			writeVByte(list.offsets[j] - lastOffset);
+    			lastOffset = list.offsets[j];
+    		}
+    	}
+    	return length;
+    }
+
+
+    /**
+     *  Encodes a token alone into <code>bytes</code>, as it starts a record.
+     *  This is the format of the terms file of a persistent index.
+     *
+     *  @return The number of bytes of the token.
+     */
+    public int encodeToken( String token ) {
+    	length = 0;
+    	writeToken(token);
+    	return length;
+    }
+
+
+    /**
+     *  Reads the token of the record starting at <code>ptr</code> in a file.
+     */
+    public static String readToken( RandomAccessFile file, long ptr ) throws IOException {
+    	file.seek(ptr);
+    	int len = 0, shift = 0;
+    	byte b;
+    	do {
+    		b = file.readByte();
+    		len |= (b & 0x7F) << shift;
+    		shift += 7;
+    	} while(b < 0);
+    	byte[] key = new byte[len];
+    	file.readFully(key);
+    	return new String(key, StandardCharsets.UTF_8);
+    }
+
+
+    /**
+     *  Returns the token of the record starting at <code>pos</code>.
+     */
+    public static String decodeToken( ByteBuffer buf, int pos ) {
+    	Reader in = new Reader(buf, pos);
+    	byte[] key = new byte[in.next()];
+    	for(int i = 0; i < key.length; i++) {
+    		key[i] = buf.get(in.pos++);
+    	}
+    	return new String(key, StandardCharsets.UTF_8);
+    }
+
+
+    /**
+     *  Checks whether the record starting at <code>pos</code> is the one of the
+     *  token encoded as <code>key</code>, without copying anything.
+     */
+    public static boolean hasToken( ByteBuffer buf, int pos, byte[] key ) {
+    	Reader in = new Reader(buf, pos);
+    	if(in.next() != key.length)
+    		return false;
+    	for(int i = 0; i < key.length; i++) {
+    		if(buf.get(in.pos++) != key[i])
+    			return false;
+    	}
+    	return true;
+    }
+
+
+    /**
+     *  Decodes the postings of the record starting at <code>pos</code> directly
+     *  into the arrays of a new PostingsList.
+     */
+    public static PostingsList decode( ByteBuffer buf, int pos ) {
+    	Reader in = new Reader(buf, pos);
+    	int keyLength = in.next();
+    	in.pos += keyLength;
+
+    	int size = in.next();
+    	int positions = in.next();
+    	PostingsList list = new PostingsList();
+    	list.docIDs = new int[Math.max(size, 1)];
+    	list.offsetStart = new int[size + 1];
+    	list.offsets = new int[Math.max(positions, 1)];
+
+    	int doc = 0, n = 0;
+    	for(int i = 0; i < size; i++) {
+    		doc += in.next();
+    		list.docIDs[i] = doc;
+    		int tf = in.next();
+    		int offset = 0;
+    		for(int j = 0; j < tf; j++) {
+    			offset += in.next();
+    			list.offsets[n++] = offset;
+    		}
+    		list.offsetStart[i+1] = n;
+    	}
+    	list.size = size;
+    	return list.size == 0 ? null : list;
+    }
+
+
+    /**
+     *  Reads variable-byte numbers from a buffer, at absolute positions.
+     */
+    static class Reader {
+    	ByteBuffer buf;
+    	int pos;
+
+    	Reader( ByteBuffer buf, int pos ) {
+    		this.buf = buf;
+    		this.pos = pos;
+    	}
+
+    	int next() {
+    		int v = 0, shift = 0;
+    		byte b;
+    		do {
+    			b = buf.get(pos++);
+    			v |= (b & 0x7F) << shift;
+    			shift += 7;
+    		} while(b < 0);
+    		return v;
+    	}
+    }
+
+
+    /**
+     *  Writes the header of a new data file, or checks the header of an existing one.
+     *
+     *  @return The position of the first record.
+     *  @throws IOException if the file is in another format.
+     */
+    public static long checkHeader( RandomAccessFile dataFile ) throws IOException {
+    	if(dataFile.length() == 0)
+    		return writeHeader(dataFile);
+    	dataFile.seek(0);
+    	if(dataFile.length() < HEADER_LEN || dataFile.readInt() != MAGIC || dataFile.readInt() != VERSION)
+    		throw new IOException("The data file is not in postings format version " + VERSION + ", the index has to be rebuilt");
+    	return HEADER_LEN;
+    }
+
+
+    /**
+     *  Empties the data file, whatever its format, and writes the header of a new one.
+     *
+     *  @return The position of the first record.
+     */
+    public static long writeHeader( RandomAccessFile dataFile ) throws IOException {
+    	dataFile.setLength(0);
+    	dataFile.seek(0);
+    	dataFile.writeInt(MAGIC);
+    	dataFile.writeInt(VERSION);
+    	return HEADER_LEN;
+    }
+
+
+    private void writeToken( String token ) {
+    	byte[] key = token.getBytes(StandardCharsets.UTF_8);
+    	writeVByte(key.length);
+    	ensureCapacity(length + key.length);
+    	System.arraycopy(key, 0, bytes, length, key.length);
+    	length += key.length;
+    }
+
+    private void writeVByte( int v ) {
+    	ensureCapacity(length + 5);
+    	while((v & ~0x7F) != 0) {
+    		bytes[length++] = (byte) ((v & 0x7F) | 0x80);
+    		v >>>= 7;
+    	}
+    	bytes[length++] = (byte) v;
+    }
+
+    private void ensureCapacity( int capacity ) {
+    	if(capacity > bytes.length)
+    		bytes = Arrays.copyOf(bytes, Math.max(capacity, 2*bytes.length));
+    }
+}
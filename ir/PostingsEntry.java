@@ -1,66 +1,85 @@
-/*  
+/*
  *   This file is part of the computer assignment for the
  *   Information Retrieval course at KTH.
- * 
+ *
  *   Johan Boye, 2017
- */  
+ */
 
 package ir;
 
-import java.util.HashMap;
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.StringTokenizer;
 import java.io.Serializable;
 
 public class PostingsEntry implements Comparable<PostingsEntry>, Serializable {
-    
+
     public int docID;
-    public ArrayList<Integer> offset = new ArrayList<Integer>();
     public double score = 0;
 
+    /** Empty set of positions, shared by entries created without offsets. */
+    private static final int[] NO_OFFSETS = new int[0];
+
+    /**
+     *  The positions of the term in the document are offsets[from] ... offsets[to-1].
+     *  The array is normally the one of the PostingsList this entry was read from.
+     */
+    int[] offsets;
+    int from;
+    int to;
+
     /**
      *  PostingsEntries are compared by their score (only relevant
      *  in ranked retrieval).
      *
-     *  The comparison is defined so that entries will be put in 
+     *  The comparison is defined so that entries will be put in
      *  descending order.
      */
     public int compareTo( PostingsEntry other ) {
     	return Double.compare( other.score, score );
     }
-    
+
     public int compareToDocID(PostingsEntry other) {
     	return Integer.compare(docID, other.docID);
     }
 
-    
+
     //
     // YOUR CODE HERE
     //
-    
+
     public PostingsEntry(int doc, int offset) {
     	this.docID = doc;
-    	if(offset != -1)
-    		this.offset.add(offset);
+    	if(offset != -1) {
+    		this.offsets = new int[] { offset };
+    		this.to = 1;
+    	} else {
+    		this.offsets = NO_OFFSETS;
+    	}
     }
-    
-    public PostingsEntry(int doc, ArrayList<Integer> offset) {
+
+    /**
+     *  Creates an entry for the positions offsets[from] ... offsets[to-1].
+     *  The array is not copied.
+     */
+    PostingsEntry(int doc, int[] offsets, int from, int to, double score) {
     	this.docID = doc;
-    	this.offset = offset;
+    	this.offsets = offsets;
+    	this.from = from;
+    	this.to = to;
+    	this.score = score;
     }
-    
-    public void addOffset(int offset) {
-    	this.offset.add(offset);
+
+    /** Number of occurrences of the term in the document. */
+    public int offsetCount() {
+    	return to - from;
     }
-    
-    public void createOffset(ArrayList<Integer> offset) {
-    	this.offset = offset;
+
+    /** Returns the jth position of the term in the document. */
+    public int getOffset(int j) {
+    	return offsets[from + j];
     }
-    
+
     public int getDocID() {
     	return this.docID;
     }
 }
 
-    
+
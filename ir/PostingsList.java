@@ -1,84 +1,401 @@
-/*  
+/*
  *   This file is part of the computer assignment for the
  *   Information Retrieval course at KTH.
- * 
+ *
  *   Johan Boye, 2017
- */  
+ */
 
 package ir;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashMap;
-import java.util.stream.Collectors;
+import java.util.Arrays;
 
+/**
+ *  A postings list stored in primitive arrays.
+ *
+ *  The docIDs of the postings are kept in <code>docIDs</code>, and the
+ *  positions of all postings are stored back to back in <code>offsets</code>:
+ *  the positions of posting i are offsets[offsetStart[i]] ... offsets[offsetStart[i+1]-1].
+ *  No object is allocated per posting or per position.
+ */
 public class PostingsList {
-    
-    /** The postings list */
-    public ArrayList<PostingsEntry> list = new ArrayList<PostingsEntry>();
+
+    /** The docIDs of the postings. */
+    int[] docIDs;
+
+    /** Where the positions of each posting start in <code>offsets</code> (size+1 entries are used). */
+    int[] offsetStart;
+
+    /** The positions of all postings. */
+    int[] offsets;
+
+    /** The scores of the postings (only allocated in ranked retrieval). */
+    double[] scores = null;
+
+    /** Number of postings in this list. */
+    int size = 0;
 
 
     /** Number of postings in this list. */
     public int size() {
-    	return list.size();
+    	return size;
     }
 
-    /** Returns the ith posting. */
+    /**
+     *  Returns the ith posting. The entry is a view on this list, so the
+     *  hot paths should rather use getDocID, getOffsetCount and getOffset.
+     */
     public PostingsEntry get( int i ) {
-    	return list.get( i );
+    	return new PostingsEntry(docIDs[i], offsets, offsetStart[i], offsetStart[i+1], getScore(i));
     }
 
-    // 
+    //
     //  YOUR CODE HERE
     //
-    
-    public PostingsList(ArrayList<PostingsEntry> list) {
-    	this.list = list;
+
+    public PostingsList() {
+    	docIDs = new int[2];
+    	offsetStart = new int[3];
+    	offsets = new int[2];
+    }
+
+    /** Creates a copy of <code>other</code>. */
+    public PostingsList(PostingsList other) {
+    	docIDs = Arrays.copyOf(other.docIDs, Math.max(other.size, 1));
+    	offsetStart = Arrays.copyOf(other.offsetStart, other.size + 1);
+    	offsets = Arrays.copyOf(other.offsets, Math.max(other.offsetStart[other.size], 1));
+    	if(other.scores != null)
+    		scores = Arrays.copyOf(other.scores, docIDs.length);
+    	size = other.size;
+    }
+
+    /** Creates a list on the given arrays, which are not copied. */
+    private PostingsList(int[] docIDs, int[] offsetStart, int[] offsets, int size) {
+    	this.docIDs = docIDs;
+    	this.offsetStart = offsetStart;
+    	this.offsets = offsets;
+    	this.size = size;
+    }
+
+    /**
+     *  Returns a read-only view of the first n postings, sharing the arrays of
+     *  this list. Adding postings for documents after the last one of the view
+     *  never changes what the view sees: only entries past the view are
+     *  written, or the arrays are replaced.
+     */
+    PostingsList view(int n) {
+    	return new PostingsList(docIDs, offsetStart, offsets, n);
+    }
+
+    public PostingsList(int docID, int offset) {
+    	this();
+    	addPosting(docID, offset);
+    }
+
+    /** The docID of the ith posting. */
+    public int getDocID(int i) {
+    	return docIDs[i];
+    }
+
+    /** Number of positions (the term frequency) of the ith posting. */
+    public int getOffsetCount(int i) {
+    	return offsetStart[i+1] - offsetStart[i];
+    }
+
+    /** The jth position of the ith posting. */
+    public int getOffset(int i, int j) {
+    	return offsets[offsetStart[i] + j];
+    }
+
+    public double getScore(int i) {
+    	return scores == null ? 0 : scores[i];
     }
-    
+
+    public void setScore(int i, double score) {
+    	if(scores == null)
+    		scores = new double[docIDs.length];
+    	scores[i] = score;
+    }
+
+    public void addScore(int i, double score) {
+    	setScore(i, getScore(i) + score);
+    }
+
+    /** Returns the posting of <code>docID</code>, or null if the document is not in the list. */
     public PostingsEntry getDoc(int docID) {
-    	for(int i = 0; i < list.size(); i++) {
-    		if(list.get(i).docID == docID)
-    			return list.get(i);
-    	}
+    	int i = advance(0, docID);
+    	if(i < size && docIDs[i] == docID)
+    		return get(i);
     	return null;
     }
-    
-    public PostingsList(int docID, int offset) {
-    	this.list.add(new PostingsEntry(docID, offset));
+
+    /**
+     *  Returns the index of the first posting at or after index <code>from</code>
+     *  whose docID is at least <code>docID</code>, or size() if there is none.
+     *
+     *  The target is bracketed by galloping (steps of 1, 2, 4, ...) and then
+     *  found by binary search, so skipping over n postings costs O(log n).
+     *  Intersecting a short list with a long one is thus O(short * log(long)).
+     */
+    public int advance(int from, int docID) {
+    	if(from >= size || docIDs[from] >= docID)
+    		return from;
+    	int lo = from;
+    	int step = 1;
+    	int hi = from + 1;
+    	while(hi < size && docIDs[hi] < docID) {
+    		lo = hi;
+    		step <<= 1;
+    		hi = lo + step;
+    	}
+    	if(hi > size)
+    		hi = size;
+    	// docIDs[lo] < docID, and docIDs[hi] >= docID unless hi == size
+    	lo++;
+    	while(lo < hi) {
+    		int mid = (lo + hi) >>> 1;
+    		if(docIDs[mid] < docID)
+    			lo = mid + 1;
+    		else
+    			hi = mid;
+    	}
+    	return lo;
     }
-    
-    public PostingsList(int docID, ArrayList<Integer> offset) {
-    	this.list.add(new PostingsEntry(docID, -1));
-    	this.list.get(0).createOffset(offset);
+
+    /** Returns a cursor positioned on the first posting. */
+    public Cursor cursor() {
+    	return new Cursor();
     }
-    
-    public void addPosting(int doc, ArrayList<Integer> offset) {
-    	this.list.add(new PostingsEntry(doc, offset));
+
+    /**
+     *  A forward-only cursor over the postings, used to intersect lists.
+     */
+    public class Cursor {
+
+    	/** Index of the current posting. */
+    	int i = 0;
+
+    	/** Returns false when the cursor has moved past the last posting. */
+    	public boolean hasMore() {
+    		return i < size;
+    	}
+
+    	/** The docID of the current posting. */
+    	public int docID() {
+    		return docIDs[i];
+    	}
+
+    	/** The index of the current posting in the list. */
+    	public int index() {
+    		return i;
+    	}
+
+    	/** The list this cursor moves over. */
+    	public PostingsList list() {
+    		return PostingsList.this;
+    	}
+
+    	/** Moves to the next posting. */
+    	public void next() {
+    		i++;
+    	}
+
+    	/**
+    	 *  Moves to the first posting whose docID is at least <code>docID</code>.
+    	 *  @return false if there is no such posting.
+    	 */
+    	public boolean advance(int docID) {
+    		i = PostingsList.this.advance(i, docID);
+    		return i < size;
+    	}
+    }
+
+    /**
+     *  Appends a posting for <code>doc</code> with the positions
+     *  offs[from] ... offs[to-1].
+     */
+    public void addPosting(int doc, int[] offs, int from, int to) {
+    	int n = offsetStart[size];
+    	ensureOffsetCapacity(n + to - from);
+    	System.arraycopy(offs, from, offsets, n, to - from);
+    	appendDoc(doc, n + to - from);
+    }
+
+    /**
+     *  Appends a posting without positions, with the given score. Ranked results
+     *  are built this way, in order of decreasing score rather than docID.
+     */
+    public void addPosting(int doc, double score) {
+    	appendDoc(doc, offsetStart[size]);
+    	setScore(size-1, score);
+    }
+
+    /** Appends a copy of the ith posting (and its score) of <code>other</code>. */
+    public void addPosting(PostingsList other, int i) {
+    	addPosting(other.docIDs[i], other.offsets, other.offsetStart[i], other.offsetStart[i+1]);
+    	if(other.scores != null)
+    		setScore(size-1, other.scores[i]);
+    }
+
+    /** Appends the postings of <code>other</code>, whose documents all come after those of this list. */
+    public void addAll(PostingsList other) {
+    	for(int i = 0; i < other.size; i++)
+    		addPosting(other, i);
     }
-    
+
+    /**
+     *  Adds the position <code>offset</code> of the term in <code>doc</code>
+     *  (-1 adds the document without a position).
+     *
+     *  The indexer hands out increasing docIDs and offsets, so only the last
+     *  posting has to be looked at, which makes this constant time. A docID
+     *  smaller than the last one is inserted at its place in docID order.
+     */
     public void addPosting(int doc, int offset) {
-    	
-    	int jump = 50;
-    	for(int i = 0; i < list.size(); i += jump) {
-            if(i + jump >= list.size() || list.get(i + jump).docID > doc) {
-                for(int j = i; j < i + jump && j < list.size(); j++) {
-                    if (list.get(j).docID == doc) {
-                        list.get(j).addOffset(offset);
-                        return;
-                    }
-                }
-                break;
-            }
-        }
-    	
-    	
-    	this.list.add(new PostingsEntry(doc, offset));
-    	
-    	return;
+    	if(size == 0 || docIDs[size-1] < doc) {
+    		int n = offsetStart[size];
+    		if(offset != -1) {
+    			ensureOffsetCapacity(n + 1);
+    			offsets[n++] = offset;
+    		}
+    		appendDoc(doc, n);
+    	} else if(docIDs[size-1] == doc) {
+    		if(offset != -1)
+    			insertOffset(size-1, offset);
+    	} else {
+    		int i = Arrays.binarySearch(docIDs, 0, size, doc);
+    		if(i < 0) {
+    			insertDoc(-i-1, doc);
+    			i = -i-1;
+    		}
+    		if(offset != -1)
+    			insertOffset(i, offset);
+    	}
+    }
+
+    /**
+     *  Merges two lists sorted by docID into a new one. The positions of a
+     *  document found in both lists are merged.
+     */
+    public static PostingsList merge(PostingsList a, PostingsList b) {
+    	PostingsList result = new PostingsList();
+    	int i = 0, j = 0;
+    	while(i < a.size || j < b.size) {
+    		if(j == b.size || (i < a.size && a.docIDs[i] < b.docIDs[j])) {
+    			result.addPosting(a, i++);
+    		} else if(i == a.size || b.docIDs[j] < a.docIDs[i]) {
+    			result.addPosting(b, j++);
+    		} else {
+    			result.addPosting(a, i++);
+    			for(int k = b.offsetStart[j]; k < b.offsetStart[j+1]; k++) {
+    				result.insertOffset(result.size-1, b.offsets[k]);
+    			}
+    			j++;
+    		}
+    	}
+    	return result;
+    }
+
+    /**
+     *  Sorts the postings by decreasing score.
+     */
+    public void sortByScore() {
+    	PostingsEntry[] entries = new PostingsEntry[size];
+    	for(int i = 0; i < size; i++) {
+    		entries[i] = get(i);
+    	}
+    	Arrays.sort(entries);
+
+    	int[] newDocIDs = new int[docIDs.length];
+    	int[] newOffsetStart = new int[offsetStart.length];
+    	int[] newOffsets = new int[offsets.length];
+    	double[] newScores = new double[docIDs.length];
+    	int n = 0;
+    	for(int i = 0; i < size; i++) {
+    		PostingsEntry e = entries[i];
+    		newDocIDs[i] = e.docID;
+    		newScores[i] = e.score;
+    		newOffsetStart[i] = n;
+    		System.arraycopy(offsets, e.from, newOffsets, n, e.to - e.from);
+    		n += e.to - e.from;
+    	}
+    	newOffsetStart[size] = n;
+    	docIDs = newDocIDs;
+    	offsetStart = newOffsetStart;
+    	offsets = newOffsets;
+    	scores = newScores;
+    }
+
+    /**
+     *  Approximate number of bytes the list takes on the heap: the object and
+     *  the allocated capacity of its arrays (not just the used part).
+     */
+    public long footprint() {
+    	long bytes = 48 + 3*16 + 4L * (docIDs.length + offsetStart.length + offsets.length);
+    	if(scores != null)
+    		bytes += 16 + 8L * scores.length;
+    	return bytes;
+    }
+
+    /**
+     *  Releases the unused capacity of the arrays. Called when indexing is done.
+     */
+    public void trimToSize() {
+    	docIDs = Arrays.copyOf(docIDs, Math.max(size, 1));
+    	offsetStart = Arrays.copyOf(offsetStart, size + 1);
+    	offsets = Arrays.copyOf(offsets, Math.max(offsetStart[size], 1));
+    	if(scores != null)
+    		scores = Arrays.copyOf(scores, docIDs.length);
+    }
+
+    /**
+     *  Adds a posting for <code>doc</code> at the end of the list, whose positions
+     *  have already been written up to <code>offsetEnd</code>.
+     */
+    private void appendDoc(int doc, int offsetEnd) {
+    	if(size == docIDs.length) {
+    		int capacity = docIDs.length + (docIDs.length >> 1) + 1;
+    		docIDs = Arrays.copyOf(docIDs, capacity);
+    		offsetStart = Arrays.copyOf(offsetStart, capacity + 1);
+    		if(scores != null)
+    			scores = Arrays.copyOf(scores, capacity);
+    	}
+    	docIDs[size] = doc;
+    	offsetStart[++size] = offsetEnd;
+    }
+
+    /** Inserts an empty posting for <code>doc</code> at index i. */
+    private void insertDoc(int i, int doc) {
+    	appendDoc(doc, offsetStart[size]);
+    	System.arraycopy(docIDs, i, docIDs, i + 1, size - 1 - i);
+    	System.arraycopy(offsetStart, i, offsetStart, i + 1, size - i);
+    	if(scores != null) {
+    		System.arraycopy(scores, i, scores, i + 1, size - 1 - i);
+    		scores[i] = 0;
+    	}
+    	docIDs[i] = doc;
+    }
+
+    /** Adds a position to the ith posting, keeping its positions sorted. */
+    private void insertOffset(int i, int offset) {
+    	int n = offsetStart[size];
+    	int pos = offsetStart[i+1];
+    	while(pos > offsetStart[i] && offsets[pos-1] > offset) {
+    		pos--;
+    	}
+    	ensureOffsetCapacity(n + 1);
+    	System.arraycopy(offsets, pos, offsets, pos + 1, n - pos);
+    	offsets[pos] = offset;
+    	for(int j = i+1; j <= size; j++) {
+    		offsetStart[j]++;
+    	}
+    }
+
+    private void ensureOffsetCapacity(int capacity) {
+    	if(capacity > offsets.length) {
+    		offsets = Arrays.copyOf(offsets, Math.max(capacity, offsets.length + (offsets.length >> 1) + 1));
+    	}
     }
 }
-	
 
-			   
+
+
@@ -177,16 +177,17 @@ public class Query {
     	}
     	
     	
+    	int N = engine.index.docLengths.size();
     	for (Map.Entry<String,PostingsList> term : ((HashedIndex) index).index.entrySet()) {
     		
     		double w = 0.;
     		
     		
     		for(int post = 0; post < term.getValue().size(); post++) {
-    			w += (float) term.getValue().get(post).offset.size()/engine.index.docLengths.get(term.getValue().get(post).docID).intValue();
+    			w += (float) term.getValue().getOffsetCount(post)/engine.index.docLengths.get(term.getValue().getDocID(post)).intValue();
     		}
     		
-    		w *= Math.log((double) engine.index.docLengths.size() / (double) engine.index.getPostings(term.getKey()).size());
+    		w *= Math.log((double) N / (double) engine.index.getPostings(term.getKey()).size());
     		w = (float) (beta*w)/Nrelevant;
     		
     		boolean present = false;
@@ -12,5 +12,5 @@ package ir;
  *  the course. 
  */
 public enum RankingType {
-    TF_IDF, PAGERANK, COMBINATION
-}
\ No newline at end of file
+    TF_IDF, PAGERANK, COMBINATION, BM25, PIVOTED
+}
\ No newline at end of file
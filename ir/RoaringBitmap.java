@@ -0,0 +1,195 @@
+package ir;
+
+import java.util.Arrays;
+
+/**
+ *  A compressed set of non-negative ints, after the Roaring bitmaps.
+ *
+ *  The ints are split by their 16 high bits into containers, kept in order
+ *  of these high bits. A container holds the 16 low bits of its ints, in a
+ *  sorted char array as long as there are at most ARRAY_MAX of them (2 bytes
+ *  per int), and in a bitmap of 2^16 bits once there are more (less than 2
+ *  bytes per int then). The ints are enumerated in order by a cursor, a
+ *  bitmap container 64 bits at a time.
+ */
+public class RoaringBitmap {
+
+    /** Above this many ints, a container is a bitmap. */
+    static final int ARRAY_MAX = 4096;
+
+    /** Number of longs of a bitmap container. */
+    static final int WORDS = 1 << 10;
+
+    /** Number of containers. */
+    int size = 0;
+
+    /** For each container: its high bits, its array (or null) or bitmap (or null), and its cardinality. */
+    char[] keys = new char[1];
+    char[][] arrays = new char[1][];
+    long[][] bitmaps = new long[1][];
+    int[] cards = new int[1];
+
+
+    /** Adds an int. Adding ints in increasing order takes constant time. */
+    public void add( int x ) {
+    	char key = (char) (x >>> 16);
+    	char low = (char) x;
+    	int i;
+    	if(size > 0 && keys[size-1] == key)
+    		i = size - 1;
+    	else {
+    		i = find(key);
+    		if(i < 0) {
+    			i = -i - 1;
+    			insertContainer(i, key, new char[4], null, 0);
+    		}
+    	}
+    	if(bitmaps[i] != null) {
+    		long bit = 1L << low;
+    		if((bitmaps[i][low >>> 6] & bit) == 0) {
+    			bitmaps[i][low >>> 6] |= bit;
+    			cards[i]++;
+    		}
+    		return;
+    	}
+    	char[] array = arrays[i];
+    	int card = cards[i];
+    	int j = card > 0 && array[card-1] < low ? -card - 1 : Arrays.binarySearch(array, 0, card, low);
+    	if(j >= 0)
+    		return;
+    	j = -j - 1;
+    	if(card == ARRAY_MAX) {
+    		bitmaps[i] = toBitmap(array, card);
+    		arrays[i] = null;
+    		bitmaps[i][low >>> 6] |= 1L << low;
+    		cards[i]++;
+    		return;
+    	}
+    	if(card == array.length)
+    		arrays[i] = array = Arrays.copyOf(array, Math.min(2 * card, ARRAY_MAX));
+    	System.arraycopy(array, j, array, j + 1, card - j);
+    	array[j] = low;
+    	cards[i]++;
+    }
+
+
+    /** Whether the set holds an int. */
+    public boolean contains( int x ) {
+    	int i = find((char) (x >>> 16));
+    	if(i < 0)
+    		return false;
+    	char low = (char) x;
+    	if(bitmaps[i] != null)
+    		return (bitmaps[i][low >>> 6] & (1L << low)) != 0;
+    	return Arrays.binarySearch(arrays[i], 0, cards[i], low) >= 0;
+    }
+
+
+    /** Number of ints in the set. */
+    public int getCardinality() {
+    	int n = 0;
+    	for(int i = 0; i < size; i++)
+    		n += cards[i];
+    	return n;
+    }
+
+
+    /** The ints of the set, in increasing order. */
+    public int[] toArray() {
+    	int[] result = new int[getCardinality()];
+    	int n = 0;
+    	Cursor c = cursor();
+    	while(c.hasNext())
+    		result[n++] = c.next();
+    	return result;
+    }
+
+
+    /** Approximate number of bytes the set takes on the heap. */
+    public long footprint() {
+    	long bytes = 64 + keys.length * (Character.BYTES + Integer.BYTES + 2 * 8);
+    	for(int i = 0; i < size; i++)
+    		bytes += bitmaps[i] != null ? 16 + WORDS * Long.BYTES : 16 + arrays[i].length * Character.BYTES;
+    	return bytes;
+    }
+
+
+    /** Returns a cursor on the first int of the set. */
+    public Cursor cursor() {
+    	return new Cursor();
+    }
+
+    /**
+     *  Enumerates the ints of the set in increasing order.
+     */
+    public class Cursor {
+    	int i = 0, k = 0;
+    	long word;
+
+    	Cursor() {
+    		if(size > 0 && bitmaps[0] != null)
+    			word = bitmaps[0][0];
+    	}
+
+    	public boolean hasNext() {
+    		while(i < size) {
+    			if(bitmaps[i] == null) {
+    				if(k < cards[i])
+    					return true;
+    			} else {
+    				while(word == 0 && ++k < WORDS)
+    					word = bitmaps[i][k];
+    				if(word != 0)
+    					return true;
+    			}
+    			i++;
+    			k = 0;
+    			if(i < size && bitmaps[i] != null)
+    				word = bitmaps[i][0];
+    		}
+    		return false;
+    	}
+
+    	/** The next int; hasNext() must have returned true. */
+    	public int next() {
+    		int high = keys[i] << 16;
+    		if(bitmaps[i] == null)
+    			return high | arrays[i][k++];
+    		int bit = Long.numberOfTrailingZeros(word);
+    		word &= word - 1;
+    		return high | (k << 6) | bit;
+    	}
+    }
+
+
+    /** Binary search of a container. @return its index, or -(insertion point)-1. */
+    private int find( char key ) {
+    	return Arrays.binarySearch(keys, 0, size, key);
+    }
+
+    private void insertContainer( int i, char key, char[] array, long[] words, int card ) {
+    	if(size == keys.length) {
+    		int capacity = 2 * size;
+    		keys = Arrays.copyOf(keys, capacity);
+    		arrays = Arrays.copyOf(arrays, capacity);
+    		bitmaps = Arrays.copyOf(bitmaps, capacity);
+    		cards = Arrays.copyOf(cards, capacity);
+    	}
+    	System.arraycopy(keys, i, keys, i + 1, size - i);
+    	System.arraycopy(arrays, i, arrays, i + 1, size - i);
+    	System.arraycopy(bitmaps, i, bitmaps, i + 1, size - i);
+    	System.arraycopy(cards, i, cards, i + 1, size - i);
+    	keys[i] = key;
+    	arrays[i] = array;
+    	bitmaps[i] = words;
+    	cards[i] = card;
+    	size++;
+    }
+
+    private static long[] toBitmap( char[] array, int card ) {
+    	long[] words = new long[WORDS];
+    	for(int k = 0; k < card; k++)
+    		words[array[k] >>> 6] |= 1L << array[k];
+    	return words;
+    }
+}
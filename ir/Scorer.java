@@ -0,0 +1,36 @@
+package ir;
+
+/**
+ *  Computes how much a query term adds to the score of a document in ranked
+ *  retrieval. The Searcher picks one implementation per RankingType.
+ */
+public interface Scorer {
+
+    /**
+     *  Returns the scorer of one query term. The statistics come with
+     *  every term, so one scorer may serve concurrent searches of different
+     *  indexes (e.g. snapshots).
+     *
+     *  @param stats  The statistics of the index being searched.
+     *  @param weight The weight of the term in the query.
+     *  @param df     The document frequency of the term.
+     *  @param termID The id of the term in the statistics, or -1 if it is not there.
+     */
+    public TermScorer forTerm( ScoringStatistics stats, double weight, int df, int termID );
+
+
+    /**
+     *  Scores the postings of one query term.
+     */
+    public interface TermScorer {
+
+    	/** The score of the term in <code>doc</code>, where it occurs tf times. */
+    	public double score( int tf, int doc );
+
+    	/**
+    	 *  An upper bound of <code>score</code> over the postings of the term, used
+    	 *  for MaxScore pruning. POSITIVE_INFINITY if the statistics do not allow one.
+    	 */
+    	public double upperBound();
+    }
+}
@@ -0,0 +1,298 @@
+package ir;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ *  Collection statistics used by ranked retrieval, kept in primitive arrays:
+ *  the length and length normalization of every document, the average document
+ *  length, and for every term its document frequency, idf and the extremes
+ *  (largest tf, largest tf/length, shortest document) scorers bound themselves with.
+ *
+ *  The statistics are computed once when the index is committed (persistent
+ *  indexes store them next to the docInfo file), so a ranked query neither
+ *  re-reads postings lists nor looks up boxed document lengths.
+ */
+public class ScoringStatistics {
+
+    /** Number of documents in the collection. */
+    int N = 0;
+
+    /** The docIDs of the collection are smaller than this. */
+    int docIDBound = 0;
+
+    /** Length of each document, indexed by docID (-1 for unknown docIDs). */
+    int[] docLengths = new int[0];
+
+    /** 1/length of each document, indexed by docID (0 for empty or unknown documents). */
+    double[] docNorms = new double[0];
+
+    /** Average length of the documents. */
+    double avgLength = 0;
+
+    /** Mapping from terms to their position in the per-term arrays. */
+    HashMap<String,Integer> termIDs = new HashMap<String,Integer>();
+
+    /** Number of terms. */
+    int terms = 0;
+
+    /** Document frequency of each term. */
+    int[] df = new int[16];
+
+    /** Inverse document frequency log(N/df) of each term. */
+    double[] idf = new double[0];
+
+    /** Largest tf/length of each term over the documents it occurs in. */
+    double[] maxTfNorm = new double[16];
+
+    /** Largest tf of each term. */
+    int[] maxTf = new int[16];
+
+    /** Length of the shortest document each term occurs in. */
+    int[] minLength = new int[16];
+
+
+    /**
+     *  Computes the statistics of an in-memory index.
+     */
+    public static ScoringStatistics build( Map<String,PostingsList> index, Map<Integer,Integer> lengths ) {
+    	ScoringStatistics stats = new ScoringStatistics();
+    	stats.addDocuments(lengths);
+    	stats.addTerms(index);
+    	stats.finish();
+    	return stats;
+    }
+
+
+    /**
+     *  Records the lengths of a set of documents.
+     */
+    public void addDocuments( Map<Integer,Integer> lengths ) {
+    	for(Map.Entry<Integer,Integer> entry : lengths.entrySet()) {
+    		if(entry.getValue() == null)
+    			continue;
+    		int doc = entry.getKey();
+    		if(doc >= docLengths.length) {
+    			int old = docLengths.length;
+    			docLengths = Arrays.copyOf(docLengths, Math.max(doc + 1, 2*old));
+    			Arrays.fill(docLengths, old, docLengths.length, -1);
+    		}
+    		docLengths[doc] = entry.getValue();
+    	}
+    }
+
+
+    /**
+     *  Removes a deleted document from the collection. The statistics of the
+     *  terms it contains still count it until they are replaced by
+     *  <code>setTerm</code> with the postings of the remaining documents.
+     */
+    public void removeDocument( int doc ) {
+    	if(doc < docLengths.length)
+    		docLengths[doc] = -1;
+    }
+
+
+    /**
+     *  Adds the postings of a set of terms. May be called once per block of a
+     *  scalable index, as long as the blocks have disjoint documents: the
+     *  document frequencies add up. The lengths of the documents should have
+     *  been added first; a document without length is bounded by its tf.
+     */
+    public void addTerms( Map<String,PostingsList> index ) {
+    	for(Map.Entry<String,PostingsList> entry : index.entrySet()) {
+    		addTerm(entry.getKey(), entry.getValue());
+    	}
+    }
+
+
+    /**
+     *  Adds the postings of one term (see addTerms).
+     */
+    public void addTerm( String term, PostingsList list ) {
+    	Integer id = termIDs.get(term);
+    	if(id == null) {
+    		id = terms++;
+    		termIDs.put(term, id);
+    		if(id == df.length) {
+    			df = Arrays.copyOf(df, 2*id);
+    			maxTfNorm = Arrays.copyOf(maxTfNorm, 2*id);
+    			maxTf = Arrays.copyOf(maxTf, 2*id);
+    			minLength = Arrays.copyOf(minLength, 2*id);
+    		}
+    		minLength[id] = Integer.MAX_VALUE;
+    	}
+    	df[id] += list.size();
+    	for(int i = 0; i < list.size(); i++) {
+    		int tf = list.getOffsetCount(i);
+    		int len = docLength(list.getDocID(i));
+    		if(len <= 0)
+    			len = Math.max(tf, 1);
+    		double tfNorm = (double) tf / len;
+    		if(tfNorm > maxTfNorm[id])
+    			maxTfNorm[id] = tfNorm;
+    		if(tf > maxTf[id])
+    			maxTf[id] = tf;
+    		if(len < minLength[id])
+    			minLength[id] = len;
+    	}
+    }
+
+
+    /**
+     *  Replaces the statistics of a term by those of its postings, e.g. once
+     *  the postings of deleted documents are taken out.
+     */
+    public void setTerm( String term, PostingsList list ) {
+    	Integer id = termIDs.get(term);
+    	if(id != null) {
+    		df[id] = 0;
+    		maxTfNorm[id] = 0;
+    		maxTf[id] = 0;
+    		minLength[id] = Integer.MAX_VALUE;
+    	}
+    	addTerm(term, list);
+    }
+
+
+    /** The terms with statistics. */
+    public Set<String> terms() {
+    	return termIDs.keySet();
+    }
+
+
+    /**
+     *  Computes the derived statistics (N, idf and norms) once everything is added.
+     */
+    public void finish() {
+    	N = 0;
+    	docIDBound = 0;
+    	long total = 0;
+    	docNorms = new double[docLengths.length];
+    	for(int doc = 0; doc < docLengths.length; doc++) {
+    		if(docLengths[doc] >= 0) {
+    			N++;
+    			total += docLengths[doc];
+    			docIDBound = doc + 1;
+    		}
+    		if(docLengths[doc] > 0)
+    			docNorms[doc] = 1.0 / docLengths[doc];
+    	}
+    	avgLength = N > 0 ? (double) total / N : 0;
+    	idf = new double[terms];
+    	for(int t = 0; t < terms; t++) {
+    		idf[t] = Math.log((double) N / (double) df[t]);
+    	}
+    }
+
+
+    /** Returns the id of a term, or -1 if the term is unknown. */
+    public int getTermID( String term ) {
+    	Integer id = termIDs.get(term);
+    	return id == null ? -1 : id;
+    }
+
+    public int df( int termID ) {
+    	return df[termID];
+    }
+
+    public double idf( int termID ) {
+    	return idf[termID];
+    }
+
+    public double maxTfNorm( int termID ) {
+    	return maxTfNorm[termID];
+    }
+
+    public int maxTf( int termID ) {
+    	return maxTf[termID];
+    }
+
+    public int minLength( int termID ) {
+    	return minLength[termID];
+    }
+
+    /** Length of a document (0 if unknown). */
+    public int docLength( int doc ) {
+    	return doc < docLengths.length ? Math.max(docLengths[doc], 0) : 0;
+    }
+
+    /** 1/length of a document (0 if empty or unknown). */
+    public double docNorm( int doc ) {
+    	return doc < docNorms.length ? docNorms[doc] : 0;
+    }
+
+    /** Number of documents in the collection. */
+    public int size() {
+    	return N;
+    }
+
+    /** The docIDs of the collection are smaller than this. */
+    public int docIDBound() {
+    	return docIDBound;
+    }
+
+    /** Average length of the documents. */
+    public double avgLength() {
+    	return avgLength;
+    }
+
+
+    /**
+     *  Writes the statistics to a binary file.
+     */
+    public void write( String fileName ) throws IOException {
+    	try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName)))) {
+    		out.writeInt(docLengths.length);
+    		for(int len : docLengths) {
+    			out.writeInt(len);
+    		}
+    		out.writeInt(terms);
+    		for(Map.Entry<String,Integer> entry : termIDs.entrySet()) {
+    			int t = entry.getValue();
+    			out.writeUTF(entry.getKey());
+    			out.writeInt(df[t]);
+    			out.writeDouble(maxTfNorm[t]);
+    			out.writeInt(maxTf[t]);
+    			out.writeInt(minLength[t]);
+    		}
+    	}
+    }
+
+
+    /**
+     *  Reads statistics written by <code>write</code>.
+     */
+    public static ScoringStatistics read( String fileName ) throws IOException {
+    	ScoringStatistics stats = new ScoringStatistics();
+    	try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName)))) {
+    		stats.docLengths = new int[in.readInt()];
+    		for(int doc = 0; doc < stats.docLengths.length; doc++) {
+    			stats.docLengths[doc] = in.readInt();
+    		}
+    		stats.terms = in.readInt();
+    		stats.df = new int[Math.max(stats.terms, 16)];
+    		stats.maxTfNorm = new double[Math.max(stats.terms, 16)];
+    		stats.maxTf = new int[Math.max(stats.terms, 16)];
+    		stats.minLength = new int[Math.max(stats.terms, 16)];
+    		for(int t = 0; t < stats.terms; t++) {
+    			stats.termIDs.put(in.readUTF(), t);
+    			stats.df[t] = in.readInt();
+    			stats.maxTfNorm[t] = in.readDouble();
+    			stats.maxTf[t] = in.readInt();
+    			stats.minLength[t] = in.readInt();
+    		}
+    	}
+    	stats.finish();
+    	return stats;
+    }
+}
@@ -35,7 +35,7 @@ public class SearchGUI extends JFrame {
 	/**  The query type (either intersection, phrase, or ranked). */
 	QueryType queryType = QueryType.INTERSECTION_QUERY;
 
-	/**  The ranking type (either tf-idf, pagerank, or combination). */
+	/**  The ranking type (tf-idf, pagerank, combination, BM25 or pivoted normalization). */
 	RankingType rankingType = RankingType.TF_IDF;
 
 	/**  Max number of results to display. */
@@ -69,6 +69,8 @@ public class SearchGUI extends JFrame {
 	JRadioButtonMenuItem tfidfItem = new JRadioButtonMenuItem( "tf-idf" );
 	JRadioButtonMenuItem pagerankItem = new JRadioButtonMenuItem( "PageRank" );
 	JRadioButtonMenuItem combinationItem = new JRadioButtonMenuItem( "Combination" );
+	JRadioButtonMenuItem bm25Item = new JRadioButtonMenuItem( "BM25" );
+	JRadioButtonMenuItem pivotedItem = new JRadioButtonMenuItem( "Pivoted normalization" );
 	ButtonGroup queries = new ButtonGroup();
 	ButtonGroup ranking = new ButtonGroup();
 
@@ -106,6 +108,8 @@ public class SearchGUI extends JFrame {
 		rankingMenu.add( tfidfItem );
 		rankingMenu.add( pagerankItem );
 		rankingMenu.add( combinationItem );
+		rankingMenu.add( bm25Item );
+		rankingMenu.add( pivotedItem );
 		queries.add( intersectionItem );
 		queries.add( phraseItem );
 		queries.add( rankedItem );
@@ -239,6 +243,20 @@ public class SearchGUI extends JFrame {
 		};
 		combinationItem.addActionListener( setCombinationRanking );
 
+		Action setBM25Ranking = new AbstractAction() {
+			public void actionPerformed( ActionEvent e ) {
+				rankingType = RankingType.BM25;
+			}
+		};
+		bm25Item.addActionListener( setBM25Ranking );
+
+		Action setPivotedRanking = new AbstractAction() {
+			public void actionPerformed( ActionEvent e ) {
+				rankingType = RankingType.PIVOTED;
+			}
+		};
+		pivotedItem.addActionListener( setPivotedRanking );
+
 	}
 
 
@@ -0,0 +1,14 @@
+package ir;
+
+/**
+ *  The read side of an index: what a search needs. The snapshots of a
+ *  ConcurrentHashedIndex, which are read-only, are only this.
+ */
+public interface SearchableIndex {
+
+    /** Returns the postings for a given term. */
+    public PostingsList getPostings( String token );
+
+    /** Returns the collection statistics used for ranked retrieval. */
+    public ScoringStatistics getStatistics();
+}
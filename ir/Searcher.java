@@ -17,10 +17,13 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.StringTokenizer;
 
 import ir.Query.QueryTerm;
@@ -31,37 +34,69 @@ import ir.Query.QueryTerm;
 public class Searcher {
 
     /** The index to be searched by this Searcher. */
-    Index index;
+    SearchableIndex index;
     KGramIndex kgIndex;
     HashMap<String, Double> pagerank = new HashMap<String, Double>();
     
+    /** Number of documents returned by a ranked query. */
+    public int topK = 100;
+    
+    /** Maximum number of terms a wildcard is expanded to. */
+    public int maxExpansions = 10000;
+    
+    /** Evaluator for ranked queries. */
+    TopKEvaluator evaluator;
+    
+    /** The scorers of the different ranking types. */
+    public Scorer tfidfScorer = new TfIdfScorer();
+    public Scorer bm25Scorer = new BM25Scorer();
+    public Scorer pivotedScorer = new PivotedScorer();
+    public Scorer pagerankScorer;
+    public Scorer combinationScorer;
+    
     /** Constructor */
     public Searcher( Index index, KGramIndex kgIndex, HashMap<String, Double> pr ) {
         this.index = index;
         this.kgIndex = kgIndex;
         this.pagerank = pr;
+        this.evaluator = new TopKEvaluator(index);
+        this.pagerankScorer = new PagerankScorer(index, pr);
+        this.combinationScorer = new CombinedScorer(tfidfScorer, 1., pagerankScorer, 100.);
     }
-
     
-    public ArrayList<Query> buildQuery(ArrayList<String> querystring, ArrayList<Query> queries, ArrayList<Query> result, int index) {
-    	
-    	if(querystring.size() == queries.size()) {
-    		Query q = new Query();
-    		for(String term : querystring) {
-    			q.addQueryTerm(term, 1.0);
-    		}
-    		result.add(q);
-    		return result;
-    	}
-    	
-    	for(QueryTerm q : queries.get(index).queryterm) {
-    		querystring.add(q.term);
-    		result = buildQuery(querystring, queries, result, index+1);
-    		querystring.remove(querystring.size()-1);
+    /**
+     *  A searcher of <code>index</code> with the settings and scorers of <code>other</code>.
+     */
+    Searcher( Searcher other, SearchableIndex index ) {
+        this.index = index;
+        this.kgIndex = other.kgIndex;
+        this.pagerank = other.pagerank;
+        this.topK = other.topK;
+        this.maxExpansions = other.maxExpansions;
+        this.evaluator = new TopKEvaluator(index);
+        this.tfidfScorer = other.tfidfScorer;
+        this.bm25Scorer = other.bm25Scorer;
+        this.pivotedScorer = other.pivotedScorer;
+        this.pagerankScorer = other.pagerankScorer;
+        this.combinationScorer = other.combinationScorer;
+    }
+    
+    /** Returns the scorer used for a ranking type. */
+    public Scorer getScorer( RankingType rankingType ) {
+    	switch(rankingType) {
+    	case PAGERANK:
+    		return pagerankScorer;
+    	case COMBINATION:
+    		return combinationScorer;
+    	case BM25:
+    		return bm25Scorer;
+    	case PIVOTED:
+    		return pivotedScorer;
+    	default:
+    		return tfidfScorer;
     	}
-    	
-    	return result;
     }
+
     
     /**
      *  Searches the index for postings matching the query.
@@ -72,9 +107,12 @@ public class Searcher {
 		//
 		//  REPLACE THE STATEMENT BELOW WITH YOUR CODE
 		//
+    	if(index instanceof ConcurrentHashedIndex) {
+    		// The index may grow during the search: search a fixed snapshot of it
+    		return new Searcher(this, ((ConcurrentHashedIndex) index).snapshot()).search(query, queryType, rankingType);
+    	}
+    	
     	PostingsList result = null;
-    	PostingsList partialresult = null;
-    	PostingsList list2 = null;
     	
     	if(query.queryterm.size() == 0)
     		return null;
@@ -84,29 +122,28 @@ public class Searcher {
     	
     	for(int i = 0; i < query.queryterm.size(); i++) {
     		String term = query.queryterm.get(i).term;
-    		List<KGramPostingsEntry> postings = null;
-    		String newTerm;
     		//entra nell'if solo se il termine ha un'asterisco
     		if(term.indexOf("*") != -1) {
     			newqueries.add(i, new Query());
-    			String term2 = "$"+term+"$";
-    			for(int c = 0; c < term2.length()-1; c++) {
-    				String kgram = term2.substring(c, c+2);
-    				//entra nell'if solo se il kgram è senza asterisco
-    				if(kgram.indexOf("*") == -1) {
-    					if(postings == null)
-    						postings = kgIndex.getPostings(kgram);
-    					else
-    						postings = kgIndex.intersect(postings, kgIndex.getPostings(kgram));
+    			String prefix = term.substring(0, term.indexOf("*"));
+    			// a sorted dictionary enumerates the terms of the prefix directly
+    			List<String> prefixed = null;
+    			// one more term than searched tells whether there are too many
+    			if(prefix.length() > 0 && index instanceof PersistentHashedIndex)
+    				prefixed = ((PersistentHashedIndex) index).prefixTerms(prefix, term, maxExpansions + 1);
+    			if(prefixed != null) {
+    				if(prefixed.size() > maxExpansions)
+    					System.err.println("Wildcard " + term + " matches more than " + maxExpansions + " terms, only the first ones are searched");
+    				for(int k = 0; k < prefixed.size() && k < maxExpansions; k++) {
+    					newqueries.get(i).addQueryTerm(prefixed.get(k), 1.0);
     				}
+    				continue;
     			}
-    			//dentro postings tutte le parole con quei kgram
-    			for(KGramPostingsEntry posting : postings) {
-    				newTerm = kgIndex.id2term.get(posting.tokenID);
-    				
-    				if(newTerm.substring(0, term.indexOf("*")).equals(term.substring(0, term.indexOf("*"))) && newTerm.substring(newTerm.length() - ( term.length() - (term.indexOf("*")+1)), newTerm.length()).equals(term.substring(term.indexOf("*")+1, term.length()))) {
-    					newqueries.get(i).addQueryTerm(newTerm, 1.0);
-    				}
+    			int[] ids = kgIndex.wildcardTerms(term);
+    			if(ids.length > maxExpansions)
+    				System.err.println("Wildcard " + term + " matches " + ids.length + " terms, only the first " + maxExpansions + " are searched");
+    			for(int k = 0; k < ids.length && k < maxExpansions; k++) {
+    				newqueries.get(i).addQueryTerm(kgIndex.getTermByID(ids[k]), 1.0);
     			}
     			
     		} else {
@@ -116,99 +153,49 @@ public class Searcher {
     	}
     	
     	
-    	ArrayList<Query> nq = new ArrayList<Query>();
-    	
-    	
-    	if(queryType == QueryType.INTERSECTION_QUERY) {
-    		
-    		nq = buildQuery(new ArrayList<String>(), newqueries, nq, 0);
-    		
-    		
-        	for(Query q : nq) {
-	    		partialresult = index.getPostings(q.queryterm.get(0).term);
-        		/*
-	    		partialresult = null;
-	    		for(int i = 0; i < index.getPostings(q.queryterm.get(0).term).list.size(); i++) {
-	    			if(partialresult == null) {
-	    				partialresult = new PostingsList(index.getPostings(q.queryterm.get(0).term).list.get(i).docID, 0);
-	    			} else {
-	    				partialresult.addPosting(index.getPostings(q.queryterm.get(0).term).list.get(i).docID, 0);
-	    			}
-	    		}
-	    		*/
-	    		
-	        	
-	        	if(partialresult == null)
-	        		continue;
-	        	
-	    		
-		    	for(int i = 1; i < q.queryterm.size(); i++) {
-		    		
-		    		
-		    		list2 = index.getPostings(q.queryterm.get(i).term);
-		    		if(list2 == null || partialresult == null) {
-		    			partialresult = null;
-		    			break;
-		    		}
-		    		
-		    		partialresult = joint(partialresult, list2);
-		    		
-		    	}
-		    	
-		    	if(partialresult == null)
-		    		continue;
-		    	
-		    	if(result == null) {
-		    		result = partialresult;
-		    	} else {
-		    		for(PostingsEntry entry : partialresult.list) {
-		    			boolean found = false;
-		    			for(PostingsEntry entry2 : result.list) {
-		    				if(entry.docID == entry2.docID)
-		    					found = true;
-		    			}
-		    			if(!found)
-		    				result.addPosting(entry.docID, entry.offset);
-		    		}
-		    	}
-        	}
-        	
-
-    	} else if(queryType == QueryType.PHRASE_QUERY) {
+    	if(queryType == QueryType.INTERSECTION_QUERY || queryType == QueryType.PHRASE_QUERY) {
     		
-    		nq = buildQuery(new ArrayList<String>(), newqueries, nq, 0);
+    		// the postings of each query term, or of all the expansions of a wildcard
+    		int n = newqueries.size();
+    		ArrayList<ArrayList<PostingsList>> postings = new ArrayList<ArrayList<PostingsList>>();
+    		final long[] cost = new long[n];
+    		for(int i = 0; i < n; i++) {
+    			ArrayList<PostingsList> lists = new ArrayList<PostingsList>();
+    			for(QueryTerm t : newqueries.get(i).queryterm) {
+    				PostingsList list = index.getPostings(t.term);
+    				if(list != null) {
+    					lists.add(list);
+    					cost[i] += list.size();
+    				}
+    			}
+    			if(lists.isEmpty())
+    				return null;
+    			postings.add(lists);
+    		}
     		
-    		for(Query q : nq) {
-	    		partialresult = index.getPostings(q.queryterm.get(0).term);
-	        	
-	        	if(partialresult == null)
-	        		continue;
-	    		
-		    	for(int i = 1; i < q.queryterm.size(); i++) {
-		    		list2 = index.getPostings(q.queryterm.get(i).term);
-		    		if(list2 == null || partialresult == null) {
-		    			partialresult = null;
-		    			break;
-		    		}
-		    		partialresult = jointPhrase(partialresult, list2);
-		    	}
-		    	
-		    	if(partialresult == null)
-		    		continue;
-		    	
-		    	if(result == null) {
-		    		result = partialresult;
-		    	} else {
-		    		for(PostingsEntry entry : partialresult.list) {
-		    			boolean found = false;
-		    			for(PostingsEntry entry2 : result.list) {
-		    				if(entry.docID == entry2.docID)
-		    					found = true;
-		    			}
-		    			if(!found)
-		    				result.addPosting(entry.docID, entry.offset);
-		    		}
-		    	}
+    		if(queryType == QueryType.INTERSECTION_QUERY) {
+    			// the cheapest terms first: the unions of the others may not be needed
+    			Integer[] order = new Integer[n];
+    			for(int i = 0; i < n; i++)
+    				order[i] = i;
+    			Arrays.sort(order, new Comparator<Integer>() {
+    				public int compare(Integer a, Integer b) {
+    					return Long.compare(cost[a], cost[b]);
+    				}
+    			});
+    			for(int i : order) {
+    				PostingsList list = union(postings.get(i));
+    				result = result == null ? list : joint(result, list);
+    				if(result == null)
+    					break;
+    			}
+    		} else {
+    			for(int i = 0; i < n; i++) {
+    				PostingsList list = union(postings.get(i));
+    				result = result == null ? list : jointPhrase(result, list);
+    				if(result == null)
+    					break;
+    			}
     		}
 
     	} else if(queryType == QueryType.RANKED_QUERY) {
@@ -220,250 +207,135 @@ public class Searcher {
     			}
     		}
     		
+    		// document-at-a-time evaluation keeping only the topK best documents
+    		// (the evaluator skips the deleted documents)
+    		result = evaluator.evaluate(q, getScorer(rankingType), topK);
+    		return result;
     		
-    		
-    		double alpha = 1.;
-    		double beta = 1.;
-    		
-    		
-    		
-    		
-    		//result = new PostingsList(index.getPostings(q.queryterm.get(0).term).list);
-    		result = null;
-    		for(int i = 0; i < index.getPostings(q.queryterm.get(0).term).list.size(); i++) {
-    			if(result == null) {
-    				result = new PostingsList(index.getPostings(q.queryterm.get(0).term).list.get(i).docID, index.getPostings(q.queryterm.get(0).term).list.get(i).offset);
-    			} else {
-    				result.addPosting(index.getPostings(q.queryterm.get(0).term).list.get(i).docID, index.getPostings(q.queryterm.get(0).term).list.get(i).offset);
-    			}
-    		}
-    		
-    		
-    		
-    		for(int i = 1; i < q.queryterm.size(); i++) {
-    			
-    			list2 = index.getPostings(q.queryterm.get(i).term);
-    			
-    			if(list2 != null) {
-    			
-    				if(result == null) {
-    					result = list2;
-    				} else {
-    				
-		    			for(int j = 0; j < list2.size(); j++) {
-		    				boolean present = false;
-		    				for(int k = 0; k < result.size(); k++) {
-		    					if(list2.get(j).docID == result.get(k).docID) {
-		    						present = true;
-		    						break;
-		    					}
-		    				}
-		    				if(!present) {
-		    					result.addPosting(list2.get(j).docID, list2.get(j).offset);
-		    				}
-		    			}
-    				}
-    			}
-    		}
-    		
-    		if(result == null) {
-    			return null;
+    	}
+    	
+		return removeDeleted(result);
+    }
+    
+    /**
+     *  Removes the deleted documents (those with a tombstone) from a result.
+     */
+    PostingsList removeDeleted(PostingsList list) {
+    	if(list == null || Index.deletedDocs.isEmpty())
+    		return list;
+    	PostingsList result = new PostingsList();
+    	for(int i = 0; i < list.size(); i++) {
+    		if(!Index.deletedDocs.get(list.getDocID(i)))
+    			result.addPosting(list, i);
+    	}
+    	return result.size() > 0 ? result : null;
+    }
+    
+    /**
+     *  Returns the union of postings lists, merged at once through a heap of
+     *  cursors ordered by docID. The positions of a document are merged.
+     */
+    public PostingsList union(List<PostingsList> lists) {
+    	if(lists.size() == 1)
+    		return lists.get(0);
+    	PriorityQueue<PostingsList.Cursor> heap = new PriorityQueue<PostingsList.Cursor>(lists.size(), new Comparator<PostingsList.Cursor>() {
+    		public int compare(PostingsList.Cursor a, PostingsList.Cursor b) {
+    			return Integer.compare(a.docID(), b.docID());
     		}
-    		
-    		// here result is a list of posting entry of all the documents containing at least one term of the query
-    		
-    		
-    		
-    		double w;
-    		PostingsEntry entry = null;
-    		/*
-    		RandomAccessFile pr = null;
-    		try {
-    			pr = new RandomAccessFile( "./PageRankList/PageRank.txt", "r" );
-    		} catch(FileNotFoundException e) {
-    			System.err.println("ERROR - PageRank file not found");
-    			return null;
+    	});
+    	for(PostingsList list : lists) {
+    		if(list.size() > 0)
+    			heap.add(list.cursor());
+    	}
+    	PostingsList result = new PostingsList();
+    	int[] offsets = new int[16];
+    	while(!heap.isEmpty()) {
+    		int doc = heap.peek().docID();
+    		int n = 0;
+    		while(!heap.isEmpty() && heap.peek().docID() == doc) {
+    			PostingsList.Cursor c = heap.poll();
+    			PostingsList list = c.list();
+    			int count = list.getOffsetCount(c.index());
+    			if(n + count > offsets.length)
+    				offsets = Arrays.copyOf(offsets, Math.max(n + count, 2 * offsets.length));
+    			for(int j = 0; j < count; j++)
+    				offsets[n++] = list.getOffset(c.index(), j);
+    			c.next();
+    			if(c.hasMore())
+    				heap.add(c);
     		}
-    		*/
-        	StringTokenizer tokenizer = null;
-        	String line = null;
-    		
-    		for(int j = 0; j < q.queryterm.size(); j++) {
-    			
-    			PostingsList list = null;
-    			//list = new PostingsList(index.getPostings(q.queryterm.get(j).term).list);
-    			
-        		for(int i = 0; i < index.getPostings(q.queryterm.get(j).term).list.size(); i++) {
-        			if(list == null) {
-        				list = new PostingsList(index.getPostings(q.queryterm.get(j).term).list.get(i).docID, index.getPostings(q.queryterm.get(j).term).list.get(i).offset);
-        			} else {
-        				list.addPosting(index.getPostings(q.queryterm.get(j).term).list.get(i).docID, index.getPostings(q.queryterm.get(j).term).list.get(i).offset);
-        			}
-        		}
-    			
-    			
-    			if(list != null) {
-	    			double idf = Math.log((double) index.docLengths.size() / (double) index.getPostings(q.queryterm.get(j).term).size());
-	    			
-	    			w = q.queryterm.get(j).weight;
-	    			
-	    			for(int i = 0; i < result.size(); i++) {
-	    				
-	    				entry = list.getDoc(result.get(i).docID);
-	    				
-	    				if(entry != null) {
-		    				//w *= entry.offset.size();
-		    				//w *= idf;
-	    				 
-	    					
-		    				//result.get(i).score += alpha * (w * entry.offset.size() * idf)/(index.docLengths.get(result.get(i).docID).intValue());
-		    				//result.get(i).score += beta*pagerank.get(index.docNames.get(result.get(i).docID));
-		    				
-		    				if(rankingType == RankingType.TF_IDF) {
-		    	    			
-		    					result.get(i).score += (w * entry.offset.size() * idf)/(index.docLengths.get(result.get(i).docID).intValue());
-		    	    			
-		    	    		} else if(rankingType == RankingType.PAGERANK) {
-		    	    			
-		    	    			if(pagerank.containsKey(index.docNames.get(result.get(i).docID)))
-		    	    				result.get(i).score += pagerank.get(index.docNames.get(result.get(i).docID));
-		    	    			
-		    	    		} else if(rankingType == RankingType.COMBINATION) {
-		    	    			alpha = 1.;
-		    	    			beta = 100.;
-		    	    			
-		    	    			result.get(i).score += alpha * (w * entry.offset.size() * idf)/(index.docLengths.get(result.get(i).docID).intValue());
-			    				if(pagerank.containsKey(index.docNames.get(result.get(i).docID)))
-			    					result.get(i).score += beta*pagerank.get(index.docNames.get(result.get(i).docID));
-		    	    		}
-		    				
-		    				
-		    				/*
-		    				try {
-		    					
-		    					
-		    					pr.seek((long) (Byte.BYTES + Integer.BYTES + Double.BYTES) * result.get(i).docID);
-		    					byte[] data = new byte[Byte.BYTES + Integer.BYTES + Double.BYTES];
-		    					pr.readFully(data);
-		    					
-		    					
-		    					ByteBuffer buffer = ByteBuffer.wrap(data, 0, Byte.BYTES);
-		    					byte head = buffer.get();
-		    		    		if(head != (byte) 75) {
-		    		    			System.out.println("Document " + result.get(i).docID + " not found in PageRank file");
-		    		    		} else {
-		    		    			buffer = ByteBuffer.wrap(data, Byte.BYTES, Integer.BYTES);
-			    		    		if(buffer.getInt() == result.get(i).docID) {
-				    		    		buffer = ByteBuffer.wrap(data, Byte.BYTES+Integer.BYTES, Double.BYTES);
-				    		    		result.get(i).score += beta*buffer.getDouble();
-			    		    		}
-		    		    		}
-		    		    		
-		    					
-								
-							} catch (IOException e) {
-								// TODO Auto-generated catch block
-								e.printStackTrace();
-							}
-		    				*/
-		    				
-	    				}
-	    			}
-    			}
+    		Arrays.sort(offsets, 0, n);
+    		int m = 0;
+    		for(int j = 0; j < n; j++) {
+    			if(m == 0 || offsets[j] != offsets[m-1])
+    				offsets[m++] = offsets[j];
     		}
-    		/*
-    		try {
-				pr.close();
-			} catch (IOException e) {
-			}
-			*/
-    		Collections.sort(result.list);
-    		
-    		
+    		result.addPosting(doc, offsets, 0, m);
     	}
-    	
-		return result;
+    	return result.size() > 0 ? result : null;
     }
     
+    /**
+     *  Intersects two postings lists. The cursors leapfrog each other with
+     *  galloping advances, so a rare term is intersected with a frequent one
+     *  in O(small * log(large)). The positions of list1 are kept.
+     */
     public PostingsList joint(PostingsList list1, PostingsList list2) {
     	PostingsList result = null;
+    	PostingsList.Cursor c1 = list1.cursor();
+    	PostingsList.Cursor c2 = list2.cursor();
     	
-    	int idx2 = 0;
-    	
-    	for(int i = 0; i < list1.size(); i++) {
-    		while(list1.get(i).docID > list2.get(idx2).docID) {
-    			idx2++;
-    			if(list2.size() == idx2) {
-    				return result;
-    			}
-    		}
-    		if(list1.get(i).docID == list2.get(idx2).docID) {
+    	while(c1.hasMore() && c2.advance(c1.docID())) {
+    		if(c1.docID() == c2.docID()) {
     			if(result == null) {
-    				result = new PostingsList(list1.get(i).docID, list1.get(i).offset);
-    			} else {
-    				for(int j = 0; j < list1.get(i).offset.size(); j++) {
-    					result.addPosting(list1.get(i).docID, list1.get(i).offset.get(j));
-    				}
+    				result = new PostingsList();
     			}
+    			result.addPosting(list1, c1.index());
+    			c1.next();
+    		} else {
+    			c1.advance(c2.docID());
     		}
     	}
     	
     	return result;
     }
     
+    /**
+     *  Returns the documents where a term of list1 is directly followed by a
+     *  term of list2, with the positions of the list2 terms.
+     */
     public PostingsList jointPhrase(PostingsList list1, PostingsList list2) {
     	PostingsList result = null;
-    	int idx2 = 0, jdx2, off1, off2;
+    	PostingsList.Cursor c1 = list1.cursor();
+    	PostingsList.Cursor c2 = list2.cursor();
+    	int i, idx2, jdx2, n2, off1;
     	
-    	for(int i = 0; i < list1.size(); i++) {
-    		while(list1.get(i).docID > list2.get(idx2).docID) {
-    			idx2++;
-    			if(list2.size() == idx2) {
-    				return result;
-    			}
+    	while(c1.hasMore() && c2.advance(c1.docID())) {
+    		if(c1.docID() != c2.docID()) {
+    			c1.advance(c2.docID());
+    			continue;
     		}
-    		if(list1.get(i).docID == list2.get(idx2).docID) {
-    			
-    			jdx2 = 0;
-    			off2 = list2.get(idx2).offset.get(jdx2);
-    			
-    			for(int j = 0; j < list1.get(i).offset.size(); j++) {
-    				
-    				off1 = list1.get(i).offset.get(j);
-        			
-    				while(off2 < off1) {
-    					jdx2++;
-    					if(jdx2 < list2.get(idx2).offset.size()) {
-    						off2 = list2.get(idx2).offset.get(jdx2);
-    					} else {
-    						j = list1.get(i).offset.size();
-    						break;
-    					}
-    				}
-    				
-    				if(off2 == off1 + 1) {
-    					if(result == null) {
-    						result = new PostingsList(list1.get(i).docID, off2);
-    					} else {
-    						result.addPosting(list1.get(i).docID, off2);
-    					}
+    		
+    		i = c1.index();
+    		idx2 = c2.index();
+    		n2 = list2.getOffsetCount(idx2);
+    		jdx2 = 0;
+    		
+    		for(int j = 0; j < list1.getOffsetCount(i) && jdx2 < n2; j++) {
+    			off1 = list1.getOffset(i, j);
+    			while(jdx2 < n2 && list2.getOffset(idx2, jdx2) <= off1) {
+    				jdx2++;
+    			}
+    			if(jdx2 < n2 && list2.getOffset(idx2, jdx2) == off1 + 1) {
+    				if(result == null) {
+    					result = new PostingsList();
     				}
-    				
+    				result.addPosting(c1.docID(), off1 + 1);
     			}
-    			
     		}
+    		c1.next();
     	}
     	
-    	
     	return result;
     }
-}
-
-
-
-
-
-
-
-
-
+}
\ No newline at end of file
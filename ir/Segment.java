@@ -0,0 +1,256 @@
+package ir;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ *  An immutable run of postings on disk: the records (PostingsCodec format)
+ *  of its terms in increasing term order, each preceded by its length.
+ *
+ *  The first term of every block of BLOCK terms is kept in memory with its
+ *  position in the file, so a term is found by a binary search on the
+ *  blocks and a short sequential scan. A segment is also read sequentially
+ *  when it is merged with other segments.
+ */
+public class Segment {
+
+    /** Number of terms per block of the in-memory block index. */
+    static final int BLOCK = 64;
+
+    /** The file of the segment. */
+    String fileName;
+
+    /** Level of the segment: 0 when flushed, n+1 when merged from level n segments. */
+    int level;
+
+    /** Number of terms, and size of the file in bytes. */
+    int terms = 0;
+    long bytes = 0;
+
+    /** First term of each block, and its position in the file. */
+    String[] blockTerms = new String[16];
+    long[] blockPtrs = new long[16];
+    int blocks = 0;
+
+    /** Set while the segment is an input of a merge (guarded by the owning index). */
+    boolean merging = false;
+
+    /** Set once the segment is deleted; lookups then have to use the merged segment. */
+    volatile boolean closed = false;
+
+    /** The file opened for lookups. */
+    RandomAccessFile file = null;
+
+
+    Segment( String fileName, int level ) {
+    	this.fileName = fileName;
+    	this.level = level;
+    }
+
+
+    /**
+     *  Opens a segment written before, and rebuilds its block index in one
+     *  sequential pass over the file.
+     */
+    public static Segment open( String fileName, int level ) throws IOException {
+    	Segment segment = new Segment(fileName, level);
+    	Reader reader = new Reader(segment, 0);
+    	while(reader.next()) {
+    		segment.addTerm(reader.token, reader.len);
+    	}
+    	return segment;
+    }
+
+
+    /**
+     *  Accounts for the next record of the file, of <code>len</code> bytes.
+     */
+    void addTerm( String token, int len ) {
+    	if(terms % BLOCK == 0) {
+    		if(blocks == blockTerms.length) {
+    			blockTerms = Arrays.copyOf(blockTerms, 2*blocks);
+    			blockPtrs = Arrays.copyOf(blockPtrs, 2*blocks);
+    		}
+    		blockTerms[blocks] = token;
+    		blockPtrs[blocks++] = bytes;
+    	}
+    	bytes += Integer.BYTES + len;
+    	terms++;
+    }
+
+
+    /**
+     *  Returns the postings of a term in this segment, or null if the term is not in it.
+     *
+     *  @throws IOException also if the segment has been deleted (see <code>closed</code>).
+     */
+    public synchronized PostingsList getPostings( String token ) throws IOException {
+    	if(closed)
+    		throw new IOException("Segment " + fileName + " was merged away");
+    	int b = Arrays.binarySearch(blockTerms, 0, blocks, token);
+    	if(b < 0)
+    		b = -b - 2;
+    	if(b < 0)
+    		return null;
+    	if(file == null)
+    		file = new RandomAccessFile(fileName, "r");
+    	file.seek(blockPtrs[b]);
+    	byte[] record = new byte[256];
+    	for(int i = 0; i < BLOCK && file.getFilePointer() < bytes; i++) {
+    		int len = file.readInt();
+    		if(len > record.length)
+    			record = new byte[Math.max(len, 2*record.length)];
+    		file.readFully(record, 0, len);
+    		ByteBuffer buf = ByteBuffer.wrap(record, 0, len);
+    		int c = PostingsCodec.decodeToken(buf, 0).compareTo(token);
+    		if(c == 0)
+    			return PostingsCodec.decode(buf, 0);
+    		if(c > 0)
+    			return null;
+    	}
+    	return null;
+    }
+
+
+    /**
+     *  Closes and deletes the segment. Lookups running concurrently are
+     *  finished first (the lookups hold the lock of the segment).
+     */
+    public synchronized void delete() {
+    	closed = true;
+    	try {
+    		if(file != null)
+    			file.close();
+    	}
+    	catch ( IOException e ) {
+    		e.printStackTrace();
+    	}
+    	new File(fileName).delete();
+    }
+
+
+    /**
+     *  Writes a new segment. The terms must be added in increasing order.
+     */
+    public static class Writer {
+    	Segment segment;
+    	DataOutputStream out;
+    	PostingsCodec codec = new PostingsCodec();
+
+    	public Writer( String fileName, int level ) throws IOException {
+    		segment = new Segment(fileName, level);
+    		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName), BulkIndexWriter.BUFFER_SIZE));
+    	}
+
+    	public void add( String token, PostingsList list ) throws IOException {
+    		int len = codec.encode(token, list);
+    		add(token, codec.bytes, len);
+    	}
+
+    	/** Adds a term and its record, already encoded in bytes[0] ... bytes[len-1]. */
+    	public void add( String token, byte[] bytes, int len ) throws IOException {
+    		out.writeInt(len);
+    		out.write(bytes, 0, len);
+    		segment.addTerm(token, len);
+    	}
+
+    	public Segment finish() throws IOException {
+    		out.close();
+    		return segment;
+    	}
+    }
+
+
+    /**
+     *  Reads a segment sequentially, one term and postings record at a time.
+     */
+    static class Reader {
+    	DataInputStream in;
+    	int order;
+    	String token;
+    	byte[] bytes = new byte[1024];
+    	int len;
+
+    	Reader( Segment segment, int order ) throws IOException {
+    		this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.fileName), BulkIndexWriter.BUFFER_SIZE));
+    		this.order = order;
+    	}
+
+    	/** Moves to the next record. @return false at the end of the segment. */
+    	boolean next() throws IOException {
+    		try {
+    			len = in.readInt();
+    		}
+    		catch ( EOFException e ) {
+    			in.close();
+    			return false;
+    		}
+    		if(len > bytes.length)
+    			bytes = new byte[Math.max(len, 2*bytes.length)];
+    		in.readFully(bytes, 0, len);
+    		token = PostingsCodec.decodeToken(ByteBuffer.wrap(bytes, 0, len), 0);
+    		return true;
+    	}
+    }
+
+
+    /**
+     *  Merges segments in a single sequential pass over each of them. A heap
+     *  keeps the segments ordered by their current term; the postings of a
+     *  term from all segments holding it are merged into one list.
+     */
+    public static class Merger {
+    	PriorityQueue<Reader> heap;
+    	ArrayList<Reader> same = new ArrayList<Reader>();
+
+    	/** The current term and its merged postings. */
+    	public String token;
+    	public PostingsList list;
+
+    	public Merger( List<Segment> segments ) throws IOException {
+    		heap = new PriorityQueue<Reader>(Math.max(segments.size(), 1), new Comparator<Reader>() {
+    			public int compare(Reader r1, Reader r2) {
+    				int c = r1.token.compareTo(r2.token);
+    				return c != 0 ? c : Integer.compare(r1.order, r2.order);
+    			}
+    		});
+    		for(int i = 0; i < segments.size(); i++) {
+    			Reader reader = new Reader(segments.get(i), i);
+    			if(reader.next())
+    				heap.add(reader);
+    		}
+    	}
+
+    	/** Moves to the next term. @return false when all segments are read. */
+    	public boolean next() throws IOException {
+    		if(heap.isEmpty())
+    			return false;
+    		token = heap.peek().token;
+    		same.clear();
+    		while(!heap.isEmpty() && heap.peek().token.equals(token))
+    			same.add(heap.poll());
+    		list = null;
+    		for(Reader reader : same) {
+    			PostingsList part = PostingsCodec.decode(ByteBuffer.wrap(reader.bytes, 0, reader.len), 0);
+    			list = list == null ? part : PostingsList.merge(list, part);
+    			if(reader.next())
+    				heap.add(reader);
+    		}
+    		return true;
+    	}
+    }
+}
@@ -0,0 +1,324 @@
+package ir;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ *  A dictionary of sorted terms, an alternative to the on-disk hash table of
+ *  PersistentHashedIndex. Its size follows the vocabulary, and the terms
+ *  can be enumerated in order, e.g. all the terms with a given prefix.
+ *
+ *  The terms are stored in blocks of BLOCK terms, front-coded: every term
+ *  keeps only what differs from the previous one (the number of bytes they
+ *  share, then the rest of its UTF-8 bytes), followed by the length of its
+ *  postings. The postings of the terms of a block follow each other in the
+ *  data file, so only the position of the first ones is stored, in the
+ *  block index. The block index (the first term of each block, and the
+ *  positions of the block and of its postings) is at the end of the file,
+ *  and is kept in memory: a term is found by a binary search on the blocks
+ *  and a scan of one block.
+ */
+public class SortedDictionary {
+
+    /** Maximum number of terms per block. */
+    static final int BLOCK = 16;
+
+    /** Identifies the file format. */
+    static final int MAGIC = 0x53444331;
+
+    /** Size of the trailer: position of the block index, number of blocks and terms, magic. */
+    static final int TRAILER_LEN = Long.BYTES + 3 * Integer.BYTES;
+
+    /** The first term of each block, the position of the block, and of the postings of its first term. */
+    String[] blockTerms;
+    int[] blockPos;
+    long[] blockData;
+    int blocks;
+
+    /** Where the blocks end (and the block index starts). */
+    int blocksEnd;
+
+    /** Number of terms. */
+    int terms;
+
+    /** The blocks, mapped in memory. */
+    MappedByteBuffer map;
+
+
+    /**
+     *  A term, and the position and length of its postings in the data file.
+     */
+    public static class TermInfo {
+    	public String term;
+    	public long ptr;
+    	public int len;
+    }
+
+
+    /**
+     *  Opens a dictionary file: maps it and reads its block index.
+     */
+    public static SortedDictionary open( String fileName ) throws IOException {
+    	SortedDictionary dictionary = new SortedDictionary();
+    	try (RandomAccessFile file = new RandomAccessFile(fileName, "r")) {
+    		if(file.length() > Integer.MAX_VALUE)
+    			throw new IOException("The dictionary " + fileName + " is too large to be mapped");
+    		MappedByteBuffer map = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+    		int end = map.limit() - TRAILER_LEN;
+    		if(end < 0 || map.getInt(end + Long.BYTES + 2 * Integer.BYTES) != MAGIC)
+    			throw new IOException("The dictionary " + fileName + " is not a sorted dictionary");
+    		int pos = (int) map.getLong(end);
+    		dictionary.blocksEnd = pos;
+    		dictionary.blocks = map.getInt(end + Long.BYTES);
+    		dictionary.terms = map.getInt(end + Long.BYTES + Integer.BYTES);
+    		dictionary.blockTerms = new String[dictionary.blocks];
+    		dictionary.blockPos = new int[dictionary.blocks];
+    		dictionary.blockData = new long[dictionary.blocks];
+    		int[] next = { pos };
+    		for(int b = 0; b < dictionary.blocks; b++) {
+    			int n = readVByte(map, next);
+    			byte[] bytes = new byte[n];
+    			map.get(next[0], bytes);
+    			next[0] += n;
+    			dictionary.blockTerms[b] = new String(bytes, StandardCharsets.UTF_8);
+    			dictionary.blockPos[b] = map.getInt(next[0]);
+    			dictionary.blockData[b] = map.getLong(next[0] + Integer.BYTES);
+    			next[0] += Integer.BYTES + Long.BYTES;
+    		}
+    		dictionary.map = map;
+    	}
+    	return dictionary;
+    }
+
+
+    /** Number of terms. */
+    public int size() {
+    	return terms;
+    }
+
+
+    /**
+     *  Returns the block that would hold a term: the last block starting with
+     *  a smaller or equal term (0 if there is none).
+     */
+    int findBlock( String term ) {
+    	int b = Arrays.binarySearch(blockTerms, 0, blocks, term);
+    	if(b < 0)
+    		b = -b - 2;
+    	return Math.max(b, 0);
+    }
+
+
+    /**
+     *  Reads the terms of the blocks, in order, from a block on.
+     */
+    class Scanner {
+    	int block;
+    	int[] pos = new int[1];
+    	byte[] bytes = new byte[64];
+    	boolean first = true;
+    	TermInfo info = new TermInfo();
+
+    	Scanner( int block ) {
+    		this.block = block;
+    		if(block < blocks) {
+    			pos[0] = blockPos[block];
+    			info.ptr = blockData[block];
+    		}
+    	}
+
+    	/** Moves to the next term. @return null at the end of the dictionary. */
+    	TermInfo next() {
+    		if(block >= blocks)
+    			return null;
+    		if(pos[0] == (block + 1 < blocks ? blockPos[block + 1] : blocksEnd)) {
+    			if(++block >= blocks)
+    				return null;
+    			pos[0] = blockPos[block];
+    			info.ptr = blockData[block];
+    			first = true;
+    		}
+    		if(!first)
+    			info.ptr += info.len;
+    		first = false;
+    		int shared = readVByte(map, pos);
+    		int suffix = readVByte(map, pos);
+    		if(shared + suffix > bytes.length)
+    			bytes = Arrays.copyOf(bytes, Math.max(shared + suffix, 2 * bytes.length));
+    		map.get(pos[0], bytes, shared, suffix);
+    		pos[0] += suffix;
+    		info.len = readVByte(map, pos);
+    		info.term = new String(bytes, 0, shared + suffix, StandardCharsets.UTF_8);
+    		return info;
+    	}
+    }
+
+
+    /**
+     *  Looks a term up. @return its postings position and length, or null if it is not in the dictionary.
+     */
+    public TermInfo lookup( String term ) {
+    	if(blocks == 0)
+    		return null;
+    	Scanner scanner = new Scanner(findBlock(term));
+    	for(int i = 0; i < BLOCK; i++) {
+    		TermInfo info = scanner.next();
+    		if(info == null)
+    			return null;
+    		int c = info.term.compareTo(term);
+    		if(c == 0)
+    			return info;
+    		if(c > 0)
+    			return null;
+    	}
+    	return null;
+    }
+
+
+    /**
+     *  Returns the terms from <code>from</code> (included) to <code>to</code>
+     *  (excluded, or to the end if null), in order.
+     */
+    public List<String> range( String from, String to ) {
+    	ArrayList<String> result = new ArrayList<String>();
+    	if(blocks == 0)
+    		return result;
+    	Scanner scanner = new Scanner(findBlock(from));
+    	TermInfo info;
+    	while((info = scanner.next()) != null) {
+    		if(to != null && info.term.compareTo(to) >= 0)
+    			break;
+    		if(info.term.compareTo(from) >= 0)
+    			result.add(info.term);
+    	}
+    	return result;
+    }
+
+
+    /**
+     *  Returns the first <code>max</code> terms, in order, starting with a
+     *  prefix and matching a wildcard pattern (or all of them if the pattern
+     *  is null). The enumeration stops once <code>max</code> terms are found.
+     */
+    public List<String> prefixTerms( String prefix, String pattern, int max ) {
+    	ArrayList<String> result = new ArrayList<String>();
+    	if(blocks == 0)
+    		return result;
+    	Scanner scanner = new Scanner(findBlock(prefix));
+    	TermInfo info;
+    	while(result.size() < max && (info = scanner.next()) != null) {
+    		if(info.term.startsWith(prefix)) {
+    			if(pattern == null || KGramIndex.matches(info.term, pattern))
+    				result.add(info.term);
+    		}
+    		else if(info.term.compareTo(prefix) > 0)
+    			break;
+    	}
+    	return result;
+    }
+
+
+    /**
+     *  Writes a dictionary. The terms must be added in increasing order. The
+     *  file is written aside and then renamed, so a mapped previous version
+     *  stays readable.
+     */
+    public static class Writer {
+    	File file, tmp;
+    	DataOutputStream out;
+    	int pos = 0;
+    	ArrayList<String> blockTerms = new ArrayList<String>();
+    	ArrayList<Integer> blockPos = new ArrayList<Integer>();
+    	ArrayList<Long> blockData = new ArrayList<Long>();
+    	int terms = 0;
+    	int inBlock = 0;
+    	long nextData = -1;
+    	byte[] previous = new byte[0];
+
+    	public Writer( String fileName ) throws IOException {
+    		file = new File(fileName);
+    		tmp = new File(fileName + ".tmp");
+    		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), BulkIndexWriter.BUFFER_SIZE));
+    	}
+
+    	/** Adds a term whose postings are at <code>ptr</code> in the data file, <code>len</code> bytes long. */
+    	public void add( String term, long ptr, int len ) throws IOException {
+    		byte[] key = term.getBytes(StandardCharsets.UTF_8);
+    		int shared = 0;
+    		// a new block also starts where the postings are not contiguous
+    		if(inBlock == BLOCK || ptr != nextData) {
+    			blockTerms.add(term);
+    			blockPos.add(pos);
+    			blockData.add(ptr);
+    			inBlock = 0;
+    		} else {
+    			int max = Math.min(key.length, previous.length);
+    			while(shared < max && key[shared] == previous[shared])
+    				shared++;
+    		}
+    		writeVByte(shared);
+    		writeVByte(key.length - shared);
+    		out.write(key, shared, key.length - shared);
+    		pos += key.length - shared;
+    		writeVByte(len);
+    		previous = key;
+    		nextData = ptr + len;
+    		inBlock++;
+    		terms++;
+    	}
+
+    	/** Writes the block index and closes the file. */
+    	public void finish() throws IOException {
+    		long indexPos = pos;
+    		for(int b = 0; b < blockTerms.size(); b++) {
+    			byte[] key = blockTerms.get(b).getBytes(StandardCharsets.UTF_8);
+    			writeVByte(key.length);
+    			out.write(key);
+    			out.writeInt(blockPos.get(b));
+    			out.writeLong(blockData.get(b));
+    		}
+    		out.writeLong(indexPos);
+    		out.writeInt(blockTerms.size());
+    		out.writeInt(terms);
+    		out.writeInt(MAGIC);
+    		out.close();
+    		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    	}
+
+    	private void writeVByte( int v ) throws IOException {
+    		while(v >= 0x80) {
+    			out.write((v & 0x7f) | 0x80);
+    			v >>>= 7;
+    			pos++;
+    		}
+    		out.write(v);
+    		pos++;
+    	}
+    }
+
+
+    /** Reads a variable-byte integer at pos[0], and moves pos[0] past it. */
+    static int readVByte( ByteBuffer buf, int[] pos ) {
+    	int v = 0, shift = 0;
+    	byte b;
+    	do {
+    		b = buf.get(pos[0]++);
+    		v |= (b & 0x7f) << shift;
+    		shift += 7;
+    	} while((b & 0x80) != 0);
+    	return v;
+    }
+}
@@ -9,9 +9,7 @@ package ir;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.StringTokenizer;
 
 import ir.Query.QueryTerm;
@@ -64,6 +62,23 @@ public class SpellChecker {
 	public double alpha = 1.0;
 	public double beta = -1.0;
 
+	/** The buffers of a thread checking spelling, reused from term to term */
+	private static class Buffers {
+		/** The number of k-grams each term shares with the checked term (reset after each term), and the terms counted */
+		int[] overlaps = new int[0];
+		int[] counted = new int[0];
+
+		/** The two rows of the band of the edit distance matrix */
+		int[] row = new int[0];
+		int[] previousRow = new int[0];
+	}
+
+	private final ThreadLocal<Buffers> buffers = new ThreadLocal<Buffers>() {
+		protected Buffers initialValue() {
+			return new Buffers();
+		}
+	};
+
 
 	public SpellChecker(Index index, KGramIndex kgIndex) {
 		this.index = index;
@@ -88,76 +103,131 @@ public class SpellChecker {
 	 *      => insert (cost 1)
 	 *      => delete (cost 1)
 	 *      => substitute (cost 2)
+	 *
+	 * Only distances up to <code>max</code> are computed: a cell of the matrix
+	 * more than <code>max</code> off the diagonal costs more than that, so only
+	 * the band of the 2*max+1 diagonals around it is filled, one row at a time,
+	 * and the computation stops as soon as a whole row is above <code>max</code>.
+	 * Returns max+1 if the distance is larger than <code>max</code>.
 	 */
-	private int editDistance(String s1, String s2) {
+	private int editDistance(String s1, String s2, int max) {
 		//
 		// YOUR CODE HERE
 		//
 
-		int m[][] = new int[s1.length()+1][s2.length()+1];
-
-		for(int i = 0; i < s1.length()+1; i++) {
-			m[i][0] = i;
+		int m = s1.length(), n = s2.length();
+		int over = max+1;
+		if(Math.abs(m - n) > max)
+			return over;
+
+		// the cell (i, j) is at j-i+max+1 in the row i; the first and last cells are borders
+		int width = 2*max+1;
+		Buffers b = buffers.get();
+		if(b.row.length < width+2) {
+			b.row = new int[width+2];
+			b.previousRow = new int[width+2];
 		}
-
-		for(int j = 0; j < s2.length()+1; j++) {
-			m[0][j] = j;
+		int[] prev = b.previousRow, cur = b.row;
+		for(int d = 0; d < width+2; d++) {
+			int j = d-max-1;
+			prev[d] = j >= 0 && j <= n ? j : over;
 		}
-
-		for(int i = 1; i < s1.length()+1; i++) {
-			for(int j = 1; j < s2.length()+1; j++) {
-
-				int v = m[i-1][j-1];
-				if(s1.charAt(i-1) != s2.charAt(j-1)) {
-					v += 2;
-					if(v > (m[i-1][j]+1))
-						v = (m[i-1][j]+1);
-					if(v > (m[i][j-1]+1))
-						v = (m[i][j-1]+1);
-					m[i][j] = v;
+		cur[0] = cur[width+1] = over;
+
+		for(int i = 1; i <= m; i++) {
+			int best = over;
+			for(int d = 1; d <= width; d++) {
+				int j = i+d-max-1;
+				int v;
+				if(j < 0 || j > n) {
+					v = over;
+				} else if(j == 0) {
+					v = i;
 				} else {
-					m[i][j] = v;
+					v = prev[d];
+					if(s1.charAt(i-1) != s2.charAt(j-1))
+						v += 2;
+					if(v > prev[d+1]+1)
+						v = prev[d+1]+1;
+					if(v > cur[d-1]+1)
+						v = cur[d-1]+1;
 				}
-
+				if(v > over)
+					v = over;
+				cur[d] = v;
+				if(v < best)
+					best = v;
 			}
+			if(best > max)
+				return over;
+			int[] t = prev;
+			prev = cur;
+			cur = t;
 		}
 
-		return m[s1.length()][s2.length()];
+		return prev[n-m+max+1];
 	}
 
 
 	@SuppressWarnings("unchecked")
 	public ArrayList<KGramStat> generateAlternatives(String term) {
 
-		HashMap<String, Integer> candidates = new HashMap<String, Integer>();
 		ArrayList<KGramStat> result = new ArrayList<KGramStat>();
 
 		if(term == null)
 			return null;
 
-		String term2 = '$'+term+'$';
-		for(int i = 0; i < term2.length()-1; i++) {
-			String kgram = term2.substring(i, i+2);
-			for(KGramPostingsEntry entry : kgIndex.index.get(kgram)) {
-
-				String w = kgIndex.id2term.get(entry.tokenID);
-
-
-				if(!candidates.containsKey(w)) {
-					candidates.put(w, 1);
+		Buffers b = buffers.get();
+		int[] overlaps, counted;
+		int n = 0;
+		// terms may be inserted meanwhile: the k-gram index is locked while they are counted
+		kgIndex.lockForReading();
+		try {
+			if(b.overlaps.length < kgIndex.getTermCount()) {
+				b.overlaps = new int[kgIndex.getTermCount()];
+				b.counted = new int[kgIndex.getTermCount()];
+			}
+			overlaps = b.overlaps;
+			counted = b.counted;
+			// the terms are counted by id, and only looked up once per candidate
+			String term2 = '$'+term+'$';
+			for(int i = 0; i < term2.length()-1; i++) {
+				String kgram = term2.substring(i, i+2);
+				if(kgIndex.useBitmaps) {
+					RoaringBitmap set = kgIndex.getBitmap(kgram);
+					if(set == null)
+						continue;
+					RoaringBitmap.Cursor c = set.cursor();
+					while(c.hasNext()) {
+						int id = c.next();
+						if(overlaps[id]++ == 0)
+							counted[n++] = id;
+					}
 				} else {
-					candidates.replace(w, candidates.get(w).intValue()+1);
+					KGramPostings postings = kgIndex.getPostings(kgram);
+					if(postings == null)
+						continue;
+					for(int j = 0; j < postings.size(); j++) {
+						int id = postings.get(j);
+						if(overlaps[id]++ == 0)
+							counted[n++] = id;
+					}
 				}
-
 			}
 		}
+		finally {
+			kgIndex.unlockForReading();
+		}
 
-		for(Map.Entry<String, Integer> entry : candidates.entrySet()) {
-			String word = entry.getKey();
-			double J = jaccard(term.length()+1, word.length()+1, entry.getValue());
+		for(int k = 0; k < n; k++) {
+			int id = counted[k];
+			int overlap = overlaps[id];
+			overlaps[id] = 0;
+			String word = kgIndex.getTermByID(id);
+			double J = jaccard(term.length()+1, word.length()+1, overlap);
 			if(J >= JACCARD_THRESHOLD) {
 
-				double Leven = editDistance(word, term);
+				double Leven = editDistance(word, term, MAX_EDIT_DISTANCE);
 				if(Leven <= MAX_EDIT_DISTANCE) {
 					double score = -(alpha * J + beta * Leven);
 
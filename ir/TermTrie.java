@@ -0,0 +1,265 @@
+package ir;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ *  A compact, read-only trie over a set of terms, mapping every prefix to
+ *  the IDs of the terms that start with it.
+ *
+ *  The terms are sorted, so the terms below a node are a range of the sorted
+ *  array: a node only stores that range and its depth. The trie is path
+ *  compressed (a node per branching point, at most 2n nodes) and its nodes
+ *  are laid out breadth-first in int arrays, the children of a node next to
+ *  each other. The label of an edge is read from the first term below it.
+ *  Finding a prefix takes O(|prefix| log(fan-out)), and its terms are then
+ *  enumerated in O(1) each.
+ *
+ *  The trie of the reversed terms reads the terms backwards rather than
+ *  keeping reversed copies, so a trie can be written with the IDs of its
+ *  terms and its node arrays, and read back without building anything.
+ *  Two tries are merged in linear time, their keys being sorted already.
+ */
+public class TermTrie {
+
+    /** The terms in the order of their keys, and their IDs. */
+    final String[] keys;
+    final int[] ids;
+
+    /** Whether the key of a term is the reversed term. */
+    final boolean reversed;
+
+    /** For each node: its range of keys, depth (length of its prefix), and children. */
+    int[] lo, hi, depth, firstChild, children;
+    int nodes = 0;
+
+
+    /**
+     *  Builds the trie of the terms <code>terms[i]</code> with IDs <code>ids[i]</code>.
+     *  If <code>reversed</code>, the terms are reversed, so that the trie maps suffixes.
+     */
+    public TermTrie( final String[] terms, int[] termIDs, boolean reversed ) {
+    	this.reversed = reversed;
+    	int n = terms.length;
+    	Integer[] order = new Integer[n];
+    	for(int i = 0; i < n; i++)
+    		order[i] = i;
+    	Arrays.sort(order, new Comparator<Integer>() {
+    		public int compare( Integer a, Integer b ) {
+    			return compareKeys(terms[a], terms[b]);
+    		}
+    	});
+    	keys = new String[n];
+    	ids = new int[n];
+    	for(int i = 0; i < n; i++) {
+    		keys[i] = terms[order[i]];
+    		ids[i] = termIDs[order[i]];
+    	}
+    	build();
+    }
+
+
+    private TermTrie( String[] keys, int[] ids, boolean reversed, boolean build ) {
+    	this.keys = keys;
+    	this.ids = ids;
+    	this.reversed = reversed;
+    	if(build)
+    		build();
+    }
+
+
+    /**
+     *  Returns the trie of the terms of two tries (in the same direction).
+     */
+    public static TermTrie merge( TermTrie a, TermTrie b ) {
+    	int n = a.keys.length + b.keys.length;
+    	String[] keys = new String[n];
+    	int[] ids = new int[n];
+    	int i = 0, j = 0;
+    	for(int k = 0; k < n; k++) {
+    		if(j == b.keys.length || (i < a.keys.length && a.compareKeys(a.keys[i], b.keys[j]) <= 0)) {
+    			keys[k] = a.keys[i];
+    			ids[k] = a.ids[i++];
+    		} else {
+    			keys[k] = b.keys[j];
+    			ids[k] = b.ids[j++];
+    		}
+    	}
+    	return new TermTrie(keys, ids, a.reversed, true);
+    }
+
+
+    /** The character at depth <code>d</code> of the key of a term. */
+    private char at( String term, int d ) {
+    	return reversed ? term.charAt(term.length() - 1 - d) : term.charAt(d);
+    }
+
+    private int compareKeys( String a, String b ) {
+    	if(!reversed)
+    		return a.compareTo(b);
+    	int max = Math.min(a.length(), b.length());
+    	for(int d = 0; d < max; d++) {
+    		char ca = at(a, d), cb = at(b, d);
+    		if(ca != cb)
+    			return ca - cb;
+    	}
+    	return a.length() - b.length();
+    }
+
+
+    /** Lays the nodes out breadth-first, starting from the root (all the keys). */
+    private void build() {
+    	int capacity = Math.max(2 * keys.length, 1);
+    	lo = new int[capacity];
+    	hi = new int[capacity];
+    	depth = new int[capacity];
+    	firstChild = new int[capacity];
+    	children = new int[capacity];
+    	lo[0] = 0;
+    	hi[0] = keys.length;
+    	nodes = 1;
+    	for(int node = 0; node < nodes; node++) {
+    		int a = lo[node], b = hi[node];
+    		firstChild[node] = nodes;
+    		if(b - a == 0)
+    			continue;
+    		// the keys of a range share the prefix of its first and last ones
+    		int d = commonPrefix(keys[a], keys[b - 1]);
+    		depth[node] = d;
+    		int i = a;
+    		while(i < b && keys[i].length() == d)
+    			i++;
+    		while(i < b) {
+    			char c = at(keys[i], d);
+    			int j = i + 1;
+    			while(j < b && at(keys[j], d) == c)
+    				j++;
+    			lo[nodes] = i;
+    			hi[nodes] = j;
+    			nodes++;
+    			i = j;
+    		}
+    		children[node] = nodes - firstChild[node];
+    	}
+    }
+
+
+    private int commonPrefix( String a, String b ) {
+    	int max = Math.min(a.length(), b.length());
+    	int i = 0;
+    	while(i < max && at(a, i) == at(b, i))
+    		i++;
+    	return i;
+    }
+
+
+    /**
+     *  Returns the node of the keys starting with a prefix, or -1 if there are none.
+     */
+    int find( String prefix ) {
+    	if(keys.length == 0)
+    		return -1;
+    	int node = 0;
+    	int d = 0;
+    	while(true) {
+    		// check the label of the edge into the node
+    		int end = Math.min(depth[node], prefix.length());
+    		String key = keys[lo[node]];
+    		for(int i = d; i < end; i++) {
+    			if(at(key, i) != prefix.charAt(i))
+    				return -1;
+    		}
+    		if(end == prefix.length())
+    			return node;
+    		d = depth[node];
+    		// binary search of the child on its first character
+    		char c = prefix.charAt(d);
+    		int a = firstChild[node], b = a + children[node] - 1;
+    		int child = -1;
+    		while(a <= b) {
+    			int m = (a + b) >>> 1;
+    			char mc = at(keys[lo[m]], d);
+    			if(mc < c)
+    				a = m + 1;
+    			else if(mc > c)
+    				b = m - 1;
+    			else {
+    				child = m;
+    				break;
+    			}
+    		}
+    		if(child == -1)
+    			return -1;
+    		node = child;
+    	}
+    }
+
+
+    /** Number of keys starting with a prefix. */
+    public int count( String prefix ) {
+    	int node = find(prefix);
+    	return node == -1 ? 0 : hi[node] - lo[node];
+    }
+
+
+    /** Returns the IDs of the terms whose key starts with a prefix. */
+    public int[] match( String prefix ) {
+    	int node = find(prefix);
+    	if(node == -1)
+    		return new int[0];
+    	return Arrays.copyOfRange(ids, lo[node], hi[node]);
+    }
+
+
+    /** Number of terms. */
+    public int size() {
+    	return keys.length;
+    }
+
+
+    /**
+     *  Writes the IDs of the terms and the nodes, as ints: the number of
+     *  terms and of nodes, the IDs, then lo, hi, depth, firstChild and
+     *  children of the nodes.
+     */
+    public void write( DataOutputStream out ) throws IOException {
+    	out.writeInt(keys.length);
+    	out.writeInt(nodes);
+    	for(int i = 0; i < keys.length; i++)
+    		out.writeInt(ids[i]);
+    	for(int[] field : new int[][] { lo, hi, depth, firstChild, children }) {
+    		for(int node = 0; node < nodes; node++)
+    			out.writeInt(field[node]);
+    	}
+    }
+
+
+    /**
+     *  Reads a trie written by <code>write</code>, whose terms are given by ID.
+     */
+    public static TermTrie read( IntBuffer in, String[] terms, boolean reversed ) {
+    	int n = in.get();
+    	int nodes = in.get();
+    	int[] ids = new int[n];
+    	in.get(ids);
+    	String[] keys = new String[n];
+    	for(int i = 0; i < n; i++)
+    		keys[i] = terms[ids[i]];
+    	TermTrie trie = new TermTrie(keys, ids, reversed, false);
+    	trie.nodes = nodes;
+    	trie.lo = new int[nodes];
+    	trie.hi = new int[nodes];
+    	trie.depth = new int[nodes];
+    	trie.firstChild = new int[nodes];
+    	trie.children = new int[nodes];
+    	in.get(trie.lo);
+    	in.get(trie.hi);
+    	in.get(trie.depth);
+    	in.get(trie.firstChild);
+    	in.get(trie.children);
+    	return trie;
+    }
+}
@@ -0,0 +1,20 @@
+package ir;
+
+/**
+ *  Scores a term by w * tf * log(N/df) / length.
+ */
+public class TfIdfScorer implements Scorer {
+
+    public TermScorer forTerm( final ScoringStatistics stats, final double weight, int df, final int termID ) {
+    	// the idf of the terms in the statistics is computed once, with them
+    	final double idf = termID >= 0 ? stats.idf(termID) : Math.log((double) stats.size() / (double) df);
+    	return new TermScorer() {
+    		public double score( int tf, int doc ) {
+    			return weight * tf * idf * stats.docNorm(doc);
+    		}
+    		public double upperBound() {
+    			return termID < 0 ? Double.POSITIVE_INFINITY : weight * idf * stats.maxTfNorm(termID);
+    		}
+    	};
+    }
+}
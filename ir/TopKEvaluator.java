@@ -0,0 +1,163 @@
+package ir;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+import ir.Query.QueryTerm;
+
+/**
+ *  Evaluates ranked queries document-at-a-time, keeping only the k best
+ *  documents in a bounded min-heap. The score of a document is the sum of
+ *  what a Scorer gives each query term occurring in it.
+ *
+ *  The evaluation uses MaxScore pruning. Every query term has an upper bound on
+ *  what it can add to the score of a document. With the terms sorted by bound,
+ *  the terms whose bounds together do not beat the k-th best score so far are
+ *  non-essential: a document containing only those terms cannot enter the top k.
+ *  Candidates are therefore only taken from the essential terms, and the
+ *  non-essential terms are probed with galloping advances, and only as long as
+ *  the candidate can still make it.
+ */
+public class TopKEvaluator {
+
+    /** The index the query is evaluated on. */
+    SearchableIndex index;
+
+
+    /**
+     *  One query term during the evaluation.
+     */
+    class Term {
+    	PostingsList list;
+    	PostingsList.Cursor cursor;
+    	Scorer.TermScorer scorer;
+    	double upperBound;
+
+    	Term(PostingsList list, Scorer.TermScorer scorer) {
+    		this.list = list;
+    		this.cursor = list.cursor();
+    		this.scorer = scorer;
+    	}
+
+    	/** The score of the ith posting. */
+    	double score(int i) {
+    		return scorer.score(list.getOffsetCount(i), list.getDocID(i));
+    	}
+    }
+
+
+    public TopKEvaluator( SearchableIndex index ) {
+    	this.index = index;
+    }
+
+
+    /**
+     *  Returns the (at most) k best documents for the query, sorted by decreasing score.
+     *  Returns null if no query term is in the index.
+     */
+    public PostingsList evaluate( Query query, Scorer scorer, int k ) {
+
+    	ScoringStatistics stats = index.getStatistics();
+
+    	// Every postings list is read exactly once
+    	Term[] terms = new Term[query.queryterm.size()];
+    	int n = 0;
+    	for(QueryTerm qt : query.queryterm) {
+    		PostingsList list = index.getPostings(qt.term);
+    		if(list == null || list.size() == 0)
+    			continue;
+    		// the postings may include deleted documents, which the statistics do not count
+    		int termID = stats.getTermID(qt.term);
+    		int df = termID >= 0 ? stats.df(termID) : list.size();
+    		if(df == 0)
+    			continue;
+    		Term t = new Term(list, scorer.forTerm(stats, qt.weight, df, termID));
+    		t.upperBound = t.scorer.upperBound();
+    		if(Double.isInfinite(t.upperBound)) {
+    			// the statistics give no bound: take the largest score of the postings
+    			t.upperBound = 0;
+    			for(int i = 0; i < list.size(); i++) {
+    				t.upperBound = Math.max(t.upperBound, t.score(i));
+    			}
+    		}
+    		// negative contributions are bounded by 0
+    		t.upperBound = Math.max(0, t.upperBound);
+    		terms[n++] = t;
+    	}
+    	if(n == 0)
+    		return null;
+    	terms = Arrays.copyOf(terms, n);
+
+    	Arrays.sort(terms, new Comparator<Term>() {
+    		public int compare(Term t1, Term t2) {
+    			return Double.compare(t1.upperBound, t2.upperBound);
+    		}
+    	});
+
+    	// cumulated[i] bounds the score a document can get from terms 0..i
+    	double[] cumulated = new double[n];
+    	double sum = 0;
+    	for(int i = 0; i < n; i++) {
+    		sum += terms[i].upperBound;
+    		cumulated[i] = sum;
+    	}
+
+    	// Min-heap on score: the head is the k-th best document so far
+    	PriorityQueue<PostingsEntry> heap = new PriorityQueue<PostingsEntry>(k + 1, Collections.reverseOrder());
+    	double threshold = Double.NEGATIVE_INFINITY;
+    	int firstEssential = 0;
+
+    	while(true) {
+    		// Next candidate: the smallest docID among the essential terms
+    		int doc = Integer.MAX_VALUE;
+    		for(int i = firstEssential; i < n; i++) {
+    			if(terms[i].cursor.hasMore() && terms[i].cursor.docID() < doc)
+    				doc = terms[i].cursor.docID();
+    		}
+    		if(doc == Integer.MAX_VALUE)
+    			break;
+
+    		double score = 0;
+    		for(int i = firstEssential; i < n; i++) {
+    			PostingsList.Cursor c = terms[i].cursor;
+    			if(c.hasMore() && c.docID() == doc) {
+    				score += terms[i].score(c.index());
+    				c.next();
+    			}
+    		}
+    		if(Index.deletedDocs.get(doc))
+    			continue;
+
+    		for(int i = firstEssential - 1; i >= 0; i--) {
+    			if(score + cumulated[i] <= threshold)
+    				break;
+    			PostingsList.Cursor c = terms[i].cursor;
+    			if(c.advance(doc) && c.docID() == doc)
+    				score += terms[i].score(c.index());
+    		}
+
+    		if(heap.size() < k || score > threshold) {
+    			PostingsEntry entry = new PostingsEntry(doc, -1);
+    			entry.score = score;
+    			heap.add(entry);
+    			if(heap.size() > k)
+    				heap.poll();
+    			if(heap.size() == k) {
+    				threshold = heap.peek().score;
+    				while(firstEssential < n && cumulated[firstEssential] <= threshold)
+    					firstEssential++;
+    			}
+    		}
+    	}
+
+    	PostingsEntry[] best = heap.toArray(new PostingsEntry[heap.size()]);
+    	Arrays.sort(best);
+    	PostingsList result = new PostingsList();
+    	for(PostingsEntry e : best) {
+    		result.addPosting(e.docID, e.score);
+    	}
+    	return result;
+    }
+}